@@ -9,6 +9,9 @@ abstract class AbstractInterpreter {
     val ON_GROUP_NAME = "onGroup"
     val ON_TEXTSEARCH_NAME = "onTextSearch"
     val ON_SORT_NAME = "onSort"
+    val ON_FILTER_BATCH_NAME = "onFilterBatch"
+    val ON_SORT_KEYS_NAME = "onSortKeys"
+    val ON_GROUP_KEYS_NAME = "onGroupKeys"
     val CONFIG_THEME = "theme"
     val CONFIG_TASKLIST_TEXT_SIZE_SP = "tasklistTextSize"
     abstract fun tasklistTextSize(): Float?
@@ -21,9 +24,13 @@ abstract class AbstractInterpreter {
     abstract fun hasOnGroupCallback(moduleName: String): Boolean
     abstract fun onSortCallback(moduleName: String, t: Task): String
     abstract fun onGroupCallback(moduleName: String, t: Task): String?
+    abstract fun hasCallback(moduleName: String, name: String): Boolean
+    // Batch versions of onFilter, onSort and onGroup, null if not defined or failed
+    abstract fun onFilterBatch(moduleName: String, tasks: List<Task>): BooleanArray?
+    abstract fun onSortKeys(moduleName: String, tasks: List<Task>): List<String>?
+    abstract fun onGroupKeys(moduleName: String, tasks: List<Task>): List<String?>?
     abstract fun onDisplayCallback(moduleName: String, t: Task): String?
     abstract fun onAddCallback(t: Task): Task?
     abstract fun onTextSearchCallback(moduleName: String, input: String, search: String, caseSensitive: Boolean): Boolean?
     abstract fun evalScript(moduleName: String?, script: String?): AbstractInterpreter
-    abstract fun clearOnFilter(moduleName: String)
 }
\ No newline at end of file
@@ -73,8 +73,9 @@ class AddLinkBackground : Activity() {
             if (TodoApplication.config.hasPrependDate) { Task(text, todayAsString) } else { Task(text) }
         }
 
-        todoList.add(tasks, TodoApplication.config.hasAppendAtEnd)
-        todoList.notifyTasklistChanged(TodoApplication.config.todoFile, save = true, refreshMainUI = true)
+        todoList.submit("Background add") {
+            todoList.add(tasks, TodoApplication.config.hasAppendAtEnd)
+        }
         showToastShort(TodoApplication.app, R.string.link_added)
         if (TodoApplication.config.hasShareTaskShowsEdit) {
             todoList.editTasks(this, tasks, "")
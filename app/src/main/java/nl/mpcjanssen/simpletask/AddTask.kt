@@ -242,12 +242,12 @@ class AddTask : ThemedActionBarActivity() {
                 task
             }
         }
-        val origTasks = todoList.pendingEdits
+        // Copy, the pending edits are cleared when the activity finishes
+        val origTasks = ArrayList(todoList.pendingEdits)
         Log.i(TAG, "Saving ${enteredTasks.size} tasks, updating $origTasks tasks")
-        todoList.update(origTasks, enteredTasks, TodoApplication.config.hasAppendAtEnd)
-
-        // Save
-        todoList.notifyTasklistChanged(TodoApplication.config.todoFile, save = true, refreshMainUI = false)
+        todoList.submit("Update", refreshMainUI = false) {
+            todoList.update(origTasks, enteredTasks, TodoApplication.config.hasAppendAtEnd)
+        }
         finishEdit(confirmation = false)
     }
 
@@ -348,7 +348,8 @@ class AddTask : ThemedActionBarActivity() {
                 Task::tags,
                 Task::addTag,
                 Task::removeTag
-        ) {
+        ) { changeTask ->
+            changeTask(task)
             if (idx != -1) {
                 tasks[idx] = task
             } else {
@@ -400,7 +401,8 @@ class AddTask : ThemedActionBarActivity() {
                 Task::lists,
                 Task::addList,
                 Task::removeList
-        ) {
+        ) { changeTask ->
+            changeTask(task)
             if (idx != -1) {
                 tasks[idx] = task
             } else {
@@ -32,8 +32,7 @@ import android.content.Intent
 import android.net.Uri
 import android.os.Bundle
 import android.util.Log
-import nl.mpcjanssen.simpletask.task.Task
-import nl.mpcjanssen.simpletask.task.TodoList
+import nl.mpcjanssen.simpletask.task.TaskParser
 import nl.mpcjanssen.simpletask.util.Config
 import nl.mpcjanssen.simpletask.util.showToastShort
 import nl.mpcjanssen.simpletask.util.todayAsString
@@ -113,12 +112,12 @@ class AddTaskBackground : Activity() {
         val lines = if (appendText.isBlank()) { rawLines } else {
             rawLines.map { "$it $appendText" }
         }
-        val tasks = lines.map { text ->
-            if (TodoApplication.config.hasPrependDate) { Task(text, todayAsString) } else { Task(text) }
-        }
+        val prependedDate = if (TodoApplication.config.hasPrependDate) todayAsString else null
+        val tasks = TaskParser.parse(lines, TodoApplication.config.parallelParsing, prependedDate)
 
-        todoList.add(tasks, TodoApplication.config.hasAppendAtEnd)
-        todoList.notifyTasklistChanged(TodoApplication.config.todoFile, save = true, refreshMainUI = true)
+        todoList.submit("Background add") {
+            todoList.add(tasks, TodoApplication.config.hasAppendAtEnd)
+        }
         showToastShort(TodoApplication.app, R.string.task_added)
         if (TodoApplication.config.hasShareTaskShowsEdit) {
             todoList.editTasks(this, tasks, "")
@@ -69,7 +69,9 @@ data class AppWidgetRemoteViewsFactory(val intent: Intent) : RemoteViewsService.
         filter = currentFilter
 
         val newVisibleTasks = ArrayList<Task>()
-        val (tasks, _) = TodoApplication.todoList.getSortedTasks(currentFilter, TodoApplication.config.sortCaseSensitive)
+        val (tasks, _) = Interpreter.leased {
+            TodoApplication.todoList.getSortedTasks(currentFilter, TodoApplication.config.sortCaseSensitive)
+        }
         newVisibleTasks.addAll(tasks)
         Log.d(TAG, "Widget $widgetId: setFilteredTasks returned ${newVisibleTasks.size} tasks")
         visibleTasks = newVisibleTasks
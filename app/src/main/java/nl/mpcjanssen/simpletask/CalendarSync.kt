@@ -42,7 +42,7 @@ import androidx.core.content.ContextCompat
 import android.util.Log
 import hirondelle.date4j.DateTime
 import nl.mpcjanssen.simpletask.task.*
-import nl.mpcjanssen.simpletask.util.toDateTime
+import nl.mpcjanssen.simpletask.util.epochDayToDateTime
 
 private enum class EvtStatus {
     KEEP,
@@ -229,7 +229,7 @@ private class EvtMap private constructor() : HashMap<EvtKey, LinkedList<Evt>>()
             var text: String? = null
 
             // Check due date:
-            var dt = task.dueDate?.toDateTime()
+            var dt = epochDayToDateTime(task.dueDay)
             if (TodoApplication.config.isSyncDues && dt != null) {
                 text = task.showParts(CalendarSync.TASK_TOKENS)
                 val evt = Evt(dt, text, TodoApplication.app.getString(R.string.calendar_sync_desc_due))
@@ -237,7 +237,7 @@ private class EvtMap private constructor() : HashMap<EvtKey, LinkedList<Evt>>()
             }
 
             // Check threshold date:
-            dt = task.thresholdDate?.toDateTime()
+            dt = epochDayToDateTime(task.thresholdDay)
             if (TodoApplication.config.isSyncThresholds && dt != null) {
                 if (text == null) text = task.showParts(CalendarSync.TASK_TOKENS)
                 val evt = Evt(dt, text, TodoApplication.app.getString(R.string.calendar_sync_desc_thre))
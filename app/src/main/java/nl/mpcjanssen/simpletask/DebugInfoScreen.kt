@@ -26,6 +26,7 @@ class DebugInfoScreen : ThemedActionBarActivity() {
 
         val myDataset = ArrayList<String>()
         m_app = application as TodoApplication
+        myDataset.addAll(luaInfo())
         for (line in LogCat.getLog()) {
             myDataset.add(line)
         }
@@ -37,8 +38,16 @@ class DebugInfoScreen : ThemedActionBarActivity() {
 
     }
 
+    // Timing of the Lua scripts and callbacks
+    private fun luaInfo(): List<String> {
+        val result = ArrayList<String>()
+        Interpreter.scriptLoadTimes().forEach { (module, time) -> result.add("Lua load $module: $time") }
+        Interpreter.profiler.report().forEach { result.add("Lua $it") }
+        return result
+    }
+
     private fun sendLog() {
-        shareText(this@DebugInfoScreen, "${appVersion(this)} log", LogCat.getLog().joinToString("\n"))
+        shareText(this@DebugInfoScreen, "${appVersion(this)} log", (luaInfo() + LogCat.getLog()).joinToString("\n"))
     }
 
     fun initToolbar(): Boolean {
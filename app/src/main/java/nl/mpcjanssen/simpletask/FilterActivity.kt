@@ -196,6 +196,7 @@ class FilterActivity : ThemedNoActionBarActivity() {
                     else -> applyFilter()
                 }
             }
+            R.id.menu_filter_explain -> explainFilter()
             R.id.menu_filter_load_script -> openScript { contents ->
                 runOnMainThread(
                         Runnable { setScript(contents) })
@@ -221,6 +222,18 @@ class FilterActivity : ThemedNoActionBarActivity() {
             dialog.createFileDialog(this@FilterActivity, FileStore, TodoApplication.config.todoFile.parentFile, txtOnly = false)
     }
 
+    // Runs the filter as edited on the current tasks and shows how it was evaluated
+    private fun explainFilter() {
+        updateFilterFromFragments()
+        val filter = mFilter
+        Thread(Runnable {
+            val explanation = TodoApplication.todoList.explainFilter(filter)
+            runOnMainThread(Runnable {
+                createAlertDialog(this@FilterActivity, R.string.explain_filter, explanation).show()
+            })
+        }).start()
+    }
+
     private fun createFilterIntent(): Intent {
         val target = Intent(this, Simpletask::class.java)
         target.action = Constants.INTENT_START_FILTER
@@ -17,6 +17,7 @@ class FilterScriptFragment : Fragment() {
     private var cbUseScript: CheckBox? = null
     private var txtTestTask: EditText? = null
     private var spnCallback: Spinner? = null
+    private var txtStats: TextView? = null
 
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
@@ -48,6 +49,7 @@ class FilterScriptFragment : Fragment() {
         txtScript = layout.findViewById(R.id.txt_script) as EditText
         txtTestTask = layout.findViewById(R.id.txt_testtask) as EditText
         spnCallback = layout.findViewById(R.id.spnCallback) as Spinner
+        txtStats = layout.findViewById(R.id.txt_script_stats) as TextView
 
         val callbacks = arrayOf<String>(Interpreter.ON_DISPLAY_NAME, Interpreter.ON_FILTER_NAME, Interpreter.ON_GROUP_NAME, Interpreter.ON_SORT_NAME)
         val spnAdapter = activity?.let { ArrayAdapter(it, R.layout.spinner_item, callbacks) }
@@ -75,6 +77,7 @@ class FilterScriptFragment : Fragment() {
                     Log.d(TAG, "Lua execution failed " + e.message)
                     createAlertDialog(act, R.string.lua_error, e.message ?: "").show()
                 }
+                updateStats()
             }
         }
         if (savedInstanceState != null) {
@@ -89,6 +92,16 @@ class FilterScriptFragment : Fragment() {
         return layout
     }
 
+    override fun onResume() {
+        super.onResume()
+        updateStats()
+    }
+
+    // Shows how the callbacks of the module performed so far
+    private fun updateStats() {
+        txtStats?.text = Interpreter.profiler.report(environment).joinToString("\n")
+    }
+
     private fun testOnFilterCallback(barView: View, script: String, snackBar: Snackbar, t: Task) {
         val (toShow, result) = Interpreter.evalScript(environment, script).onFilterCallback(environment, t)
         if (toShow) {
@@ -2,256 +2,213 @@ package nl.mpcjanssen.simpletask
 
 
 import android.util.Log
+import nl.mpcjanssen.simpletask.task.DisplayTextCache
+import nl.mpcjanssen.simpletask.task.EpochDay
 import nl.mpcjanssen.simpletask.task.Task
+import nl.mpcjanssen.simpletask.task.TaskChanges
 import nl.mpcjanssen.simpletask.util.*
 import org.luaj.vm2.*
 import org.luaj.vm2.lib.OneArgFunction
-import org.luaj.vm2.lib.jse.JsePlatform
 import java.util.*
 
+/**
+ * The Lua interpreter used by the app, a pool of [LuaInterpreter] instances.
+ *
+ * A thread leases an instance for a block with [leased], e.g. for a refresh of the
+ * task list or a widget, so several lists can be filtered in parallel. Calls outside
+ * of a lease lease an instance for that call. The instances are synced with the
+ * latest script of every module when leased and are replaced when the configuration
+ * script changes.
+ *
+ * The scripts run during a lease share the budget set in the preferences. When it is
+ * used up the running script is aborted and the callbacks are skipped until the end
+ * of the lease, so the list is shown as if there were no scripts. The calls are
+ * recorded in [profiler] if profiling is enabled in the preferences.
+ */
 object Interpreter :  AbstractInterpreter() {
-    private val globals = JsePlatform.standardGlobals()!!
     const val tag = "LuaInterp"
 
-    private val TODOLIB = readAsset(TodoApplication.app.assets, "lua/todolib.lua")
+    // Idle instances kept for the next lease, more are created when needed
+    private const val MAX_IDLE = 4
 
-    init {
-        globals.set("toast", LuaToastShort())
-        globals.set("log", LuaLog())
-        evalScript(null, TODOLIB)
-        try {
-            evalScript(null, TodoApplication.config.luaConfig)
-        } catch (e: LuaError) {
-            Log.w(TodoApplication.config.TAG, "Lua execution failed " + e.message)
-            showToastLong(TodoApplication.app, "${getString(R.string.lua_error)}:  ${e.message}")
-        }
+    private class Pooled(val lua: LuaInterpreter, val generation: Int)
 
-    }
+    private val idle = ArrayDeque<Pooled>()
+    private val current = ThreadLocal<Pooled?>()
+    // The latest script of each module
+    private val moduleScripts = HashMap<String, String?>()
+    // The configuration script if it was changed since the start, increases the generation
+    private var configScript: String? = null
+    private var generation = 0
+    private var reportedGeneration = -1
 
-    override fun tasklistTextSize(): Float? {
-        return callZeroArgLuaFunction(CONFIG_TASKLIST_TEXT_SIZE_SP) { it.tofloat() }
-    }
+    val profiler = LuaProfiler()
 
-    // Callback to determine the theme. Return true for dark.
-    override fun configTheme(): String? {
-        return callZeroArgLuaFunction(CONFIG_THEME) { it.toString() }
-    }
+    // Results of onDisplay, the hash is the script of the module and the configuration generation
+    private val displayTexts = DisplayTextCache()
 
-    override fun onFilterCallback(moduleName: String, t: Task): Pair<Boolean, String> {
-        val module = globals.get(moduleName).checktable()
-        if (module == LuaValue.NIL) {
-            return Pair(true, "true")
-        }
-        val onFilter = module.get(ON_FILTER_NAME)
-        if (!onFilter.isnil()) {
-            val args = fillOnFilterVarargs(t)
-            try {
-                val result = onFilter.call(args.arg1(), args.arg(2), args.arg(3))
-                return Pair(result.toboolean(), result.toString())
-            } catch (e: LuaError) {
-                Log.d(TAG, "Lua execution failed " + e.message)
-            }
+    /* Runs `block` with the instance leased by this thread, leases one if there is none */
+    fun <T> leased(block: (LuaInterpreter) -> T): T {
+        current.get()?.let { return block(it.lua) }
+        val pooled = acquire()
+        current.set(pooled)
+        profiler.enabled = TodoApplication.config.profileLua
+        pooled.lua.startBudget(TodoApplication.config.luaBudgetMs)
+        try {
+            return block(pooled.lua)
+        } finally {
+            pooled.lua.endBudget()
+            current.remove()
+            release(pooled)
         }
-        return Pair(true, "true")
     }
 
-    override fun hasFilterCallback(moduleName: String): Boolean {
-        return try {
-            val module = globals.get(moduleName).checktable() ?: globals
-            !module.get(ON_FILTER_NAME).isnil()
-        } catch (e: LuaError) {
-            Log.e(TAG, "Lua error: ${e.message} )")
-            false
-        }
-    }
+    /* True if the budget of this thread's lease ran out, the scripts are skipped until its end */
+    val budgetExceeded: Boolean
+        get() = current.get()?.lua?.budgetExceeded ?: false
 
-    override fun hasOnSortCallback(moduleName: String): Boolean {
-        return try {
-            val module = globals.get(moduleName).checktable() ?: globals
-            !module.get(ON_SORT_NAME).isnil()
-        } catch (e: LuaError) {
-            Log.e(TAG, "Lua error: ${e.message} )")
-            false
+    private fun <T> leased(moduleName: String, block: (LuaInterpreter) -> T): T {
+        return leased { lua ->
+            syncModule(lua, moduleName)
+            block(lua)
         }
     }
 
-    override fun hasOnGroupCallback(moduleName: String): Boolean {
-        return try {
-            val module = globals.get(moduleName).checktable() ?: globals
-            !module.get(ON_GROUP_NAME).isnil()
-        } catch (e: LuaError) {
-            Log.e(TAG, "Lua error: ${e.message} )")
-            false
+    // The instance might not have evaluated the latest script of the module yet
+    private fun syncModule(lua: LuaInterpreter, moduleName: String) {
+        var script: String? = null
+        synchronized(this) {
+            if (!moduleScripts.containsKey(moduleName)) return
+            script = moduleScripts[moduleName]
         }
+        lua.sync(moduleName, script)
     }
 
-    override fun onSortCallback(moduleName: String, t: Task): String {
-        val module = try {
-            globals.get(moduleName).checktable()
-        } catch (e: LuaError) {
-            Log.e(TAG, "Lua error: ${e.message} )")
-            LuaValue.NIL
-        }
-        if (module == LuaValue.NIL) {
-            return ""
+    private fun acquire(): Pooled {
+        val budgetHook = TodoApplication.config.luaBudgetMs > 0
+        val (script, instanceGeneration) = synchronized(this) {
+            while (idle.isNotEmpty()) {
+                val pooled = idle.pop()
+                if (pooled.generation == generation && pooled.lua.budgetHook == budgetHook) return pooled
+            }
+            Pair(configScript ?: TodoApplication.config.luaConfig, generation)
         }
-        val callback = module.get(ON_SORT_NAME)
-        return executeCallback(callback, t) ?: ""
+        // Outside of the lock, loading the scripts takes a while
+        val pooled = Pooled(LuaInterpreter(script, budgetHook), instanceGeneration)
+        pooled.lua.configError?.let { reportConfigError(instanceGeneration, it) }
+        return pooled
     }
 
-    override fun onGroupCallback(moduleName: String, t: Task): String? {
-        val module = getModule(moduleName)
-        if (module == LuaValue.NIL) {
-            return null
+    @Synchronized
+    private fun release(pooled: Pooled) {
+        if (pooled.generation == generation && idle.size < MAX_IDLE) {
+            idle.push(pooled)
         }
-        val callback = module.get(ON_GROUP_NAME)
-        return executeCallback(callback, t)
     }
 
-    private fun getModule(moduleName: String): LuaValue {
-        return try {
-            globals.get(moduleName).checktable()
-        } catch (e: LuaError) {
-            Log.e(TAG, "Lua error: ${e.message} )")
-            LuaValue.NIL
+    // Every instance fails on the same configuration, only show it once
+    @Synchronized
+    private fun reportConfigError(errorGeneration: Int, message: String) {
+        if (errorGeneration != reportedGeneration) {
+            reportedGeneration = errorGeneration
+            showToastLong(TodoApplication.app, "${getString(R.string.lua_error)}:  $message")
         }
     }
 
-    private fun executeCallback(callback: LuaValue, t: Task): String? {
-        if (!callback.isnil()) {
-            val args = fillOnFilterVarargs(t)
-            try {
-                val result = callback.call(args.arg1(), args.arg(2), args.arg(3))
-                return result.tojstring()
-            } catch (e: LuaError) {
-                Log.d(TAG, "Lua execution failed " + e.message)
+    override fun tasklistTextSize(): Float? = leased { it.tasklistTextSize() }
 
-            }
-        }
-        return null
-    }
+    override fun configTheme(): String? = leased { it.configTheme() }
 
-    override fun onDisplayCallback(moduleName: String, t: Task): String? {
-        val module = getModule(moduleName)
-        if (module == LuaValue.NIL) {
-            return null
-        }
-        val callback = module.get(ON_DISPLAY_NAME)
-        return executeCallback(callback, t)
+    override fun onFilterCallback(moduleName: String, t: Task): Pair<Boolean, String> {
+        return leased(moduleName) { it.onFilterCallback(moduleName, t) }
     }
 
-    override fun onAddCallback(t: Task): Task? {
-        val callback = globals.get(ON_ADD_NAME)
-        val result = executeCallback(callback, t)
-        return if (result!=null) Task(result) else null
+    override fun hasFilterCallback(moduleName: String): Boolean {
+        return leased(moduleName) { it.hasFilterCallback(moduleName) }
     }
 
-    override fun onTextSearchCallback(moduleName: String, input: String, search: String, caseSensitive: Boolean): Boolean? {
-        val module = getModule(moduleName)
-        if (module == LuaValue.NIL) {
-            return null
-        }
-        val onFilter = module.get(ON_TEXTSEARCH_NAME)
-        if (!onFilter.isnil()) {
-            try {
-                val result = onFilter.invoke(LuaString.valueOf(input), LuaString.valueOf(search), LuaBoolean.valueOf(caseSensitive)).arg1()
-                return result.toboolean()
-            } catch (e: LuaError) {
-                Log.d(TAG, "Lua execution failed " + e.message)
-            }
-        }
-        return null
+    override fun hasOnSortCallback(moduleName: String): Boolean {
+        return leased(moduleName) { it.hasOnSortCallback(moduleName) }
     }
 
-    override fun evalScript(moduleName: String?, script: String?): AbstractInterpreter {
-        if (moduleName != null) {
-            val module = LuaTable.tableOf()
-            val metatable = LuaValue.tableOf()
-            metatable.set("__index", globals)
-            module.setmetatable(metatable)
-            globals.set(moduleName, module)
-            script?.let { globals.load(script, moduleName, module).call() }
-        } else {
-            script?.let { globals.load(script).call() }
-        }
+    override fun hasOnGroupCallback(moduleName: String): Boolean {
+        return leased(moduleName) { it.hasOnGroupCallback(moduleName) }
+    }
 
-        return this
+    override fun onSortCallback(moduleName: String, t: Task): String {
+        return leased(moduleName) { it.onSortCallback(moduleName, t) }
     }
 
-    // Fill the arguments for the onFilter callback
-    private fun fillOnFilterVarargs(t: Task): Varargs {
-        val args = ArrayList<LuaValue>()
-        args.add(LuaValue.valueOf(t.inFileFormat(TodoApplication.config.useUUIDs)))
-        val fieldTable = LuaTable.tableOf()
-        fieldTable.set("due", dateStringToLuaLong(t.dueDate))
-        fieldTable.set("threshold", dateStringToLuaLong(t.thresholdDate))
-        fieldTable.set("createdate", dateStringToLuaLong(t.createDate))
-        fieldTable.set("completiondate", dateStringToLuaLong(t.completionDate))
-        fieldTable.set("text", t.alphaParts)
-
-        val recPat = t.recurrencePattern
-        if (recPat != null) {
-            fieldTable.set("recurrence", t.recurrencePattern)
-        }
-        fieldTable.set("completed", LuaBoolean.valueOf(t.isCompleted()))
+    override fun onGroupCallback(moduleName: String, t: Task): String? {
+        return leased(moduleName) { it.onGroupCallback(moduleName, t) }
+    }
 
-        val prioCode = t.priority.code
-        if (prioCode != "-") {
-            fieldTable.set("priority", prioCode)
-        }
-        fieldTable.set("tags", javaListToLuaTable(t.tags))
-        fieldTable.set("lists", javaListToLuaTable(t.lists))
+    override fun hasCallback(moduleName: String, name: String): Boolean {
+        return leased(moduleName) { it.hasCallback(moduleName, name) }
+    }
 
-        args.add(fieldTable)
+    override fun onFilterBatch(moduleName: String, tasks: List<Task>): BooleanArray? {
+        return leased(moduleName) { it.onFilterBatch(moduleName, tasks) }
+    }
 
-        val extensionTable = LuaTable.tableOf()
-        for ((key, value) in t.extensions) {
-            extensionTable.set(key, value)
-        }
-        args.add(extensionTable)
+    override fun onSortKeys(moduleName: String, tasks: List<Task>): List<String>? {
+        return leased(moduleName) { it.onSortKeys(moduleName, tasks) }
+    }
 
-        return LuaValue.varargsOf(args.toTypedArray())
+    override fun onGroupKeys(moduleName: String, tasks: List<Task>): List<String?>? {
+        return leased(moduleName) { it.onGroupKeys(moduleName, tasks) }
     }
 
-    private fun dateStringToLuaLong(dateString: String?): LuaValue {
-        dateString?.toDateTime()?.let {
-            return LuaValue.valueOf((it.getMilliseconds(TimeZone.getDefault()) / 1000).toDouble())
-        }
-        return LuaValue.NIL
+    private fun displayTextKey(moduleName: String, t: Task): DisplayTextCache.Key {
+        val hash = synchronized(this) { Objects.hash(moduleScripts[moduleName], generation, EpochDay.today()) }
+        return displayTexts.key(moduleName, t, hash)
     }
 
-    private fun javaListToLuaTable(javaList: Iterable<String>?): LuaValue {
-        val luaTable = LuaValue.tableOf()
-        javaList?.forEach {
-            luaTable.set(it, LuaValue.TRUE)
-        }
-        return luaTable
+    /* The cached onDisplay result of `t`, never runs Lua so it's safe on the main thread */
+    fun cachedDisplayText(moduleName: String, t: Task): DisplayTextCache.Cached? {
+        return displayTexts.get(displayTextKey(moduleName, t))
     }
 
-    // Call a Lua function `name`
-    // Use unpackResult to transform the resulting LuaValue to the expected return type `T`
-    // Returns null if the function is not found or if a `LuaError` occurred
-    private fun <T> callZeroArgLuaFunction(name: String, unpackResult: (LuaValue) -> T?): T? {
-        val function = globals.get(name)
-        if (!function.isnil()) {
-            try {
-                return unpackResult(function.call())
-            } catch (e: LuaError) {
-                Log.d(TAG, "Lua execution failed " + e.message)
+    override fun onDisplayCallback(moduleName: String, t: Task): String? {
+        val key = displayTextKey(moduleName, t)
+        displayTexts.get(key)?.let { return it.text }
+        return leased(moduleName) { lua ->
+            lua.onDisplayCallback(moduleName, t).also {
+                if (!lua.budgetExceeded) displayTexts.put(key, it)
             }
         }
-        return null
+    }
 
+    /* Drops the cached onDisplay results of the changed tasks */
+    fun invalidateDisplayTexts(changes: TaskChanges) {
+        displayTexts.invalidate(changes)
     }
 
-    override fun clearOnFilter(moduleName: String) {
-        val module = globals.get(moduleName)
-        if (module != LuaValue.NIL) {
-            module.set(ON_FILTER_NAME, LuaValue.NIL)
-        }
+    override fun onAddCallback(t: Task): Task? = leased { it.onAddCallback(t) }
+
+    override fun onTextSearchCallback(moduleName: String, input: String, search: String, caseSensitive: Boolean): Boolean? {
+        return leased(moduleName) { it.onTextSearchCallback(moduleName, input, search, caseSensitive) }
     }
 
+    /* Without a module `script` replaces the configuration script of all instances */
+    override fun evalScript(moduleName: String?, script: String?): AbstractInterpreter {
+        if (moduleName == null) {
+            // Throws if the script fails, the instances keep the old configuration then
+            leased { it.evalScript(null, script) }
+            synchronized(this) {
+                configScript = script ?: ""
+                generation++
+                idle.clear()
+            }
+        } else {
+            synchronized(this) { moduleScripts[moduleName] = script }
+            leased { it.evalScript(moduleName, script) }
+        }
+        return this
+    }
 
+    /* How long the last load of each module took */
+    fun scriptLoadTimes(): Map<String, String> = LuaInterpreter.scriptLoadTimes()
 }
 
 class LuaToastShort : OneArgFunction() {
@@ -269,4 +226,4 @@ class LuaLog : OneArgFunction() {
         Log.i(Interpreter.tag, string)
         return LuaValue.NIL
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,495 @@
+package nl.mpcjanssen.simpletask
+
+
+import android.util.Log
+import nl.mpcjanssen.simpletask.task.EpochDay
+import nl.mpcjanssen.simpletask.task.Task
+import nl.mpcjanssen.simpletask.task.TaskKeyCache
+import nl.mpcjanssen.simpletask.util.*
+import org.luaj.vm2.*
+import org.luaj.vm2.lib.DebugLib
+import org.luaj.vm2.lib.TwoArgFunction
+import org.luaj.vm2.lib.jse.JsePlatform
+import java.io.StringReader
+import java.lang.ref.WeakReference
+import java.util.*
+
+/**
+ * One set of Lua globals with the modules evaluated in it, preloaded with todolib.lua
+ * and the configuration script. LuaJ globals are not thread-safe, an instance is only
+ * used by the thread leasing it from [Interpreter].
+ */
+class LuaInterpreter(configScript: String, val budgetHook: Boolean) : AbstractInterpreter() {
+    private val globals = JsePlatform.standardGlobals()!!
+
+    // The error of the configuration script, null if it ran without errors
+    var configError: String? = null
+        private set
+
+    // Results of onSort and onGroup per module and task version. They are cleared when
+    // the script of a module, the global configuration or the day changes.
+    private val sortKeys = TaskKeyCache<String>()
+    private val groupKeys = TaskKeyCache<String?>()
+    // The script each module was last evaluated with
+    private val moduleScripts = HashMap<String, String?>()
+    // The script each module was last synced to, also if it failed
+    private val syncedScripts = HashMap<String, String?>()
+
+    private var keysDay = EpochDay.NONE
+    // Callback arguments per task version
+    private val taskArgs = TaskKeyCache<Varargs>()
+
+    // End of the time budget of the current lease in System.nanoTime, 0 without a budget
+    private var deadline = 0L
+    private var budgetMs = 0
+    // True if the scripts were aborted in this lease, the results are fallback values then
+    var budgetExceeded = false
+        private set
+
+    init {
+        globals.set("toast", LuaToastShort())
+        globals.set("log", LuaLog())
+        if (budgetHook) {
+            // The debug library slows down every instruction, it's only loaded for the hook.
+            globals.load(DebugLib())
+            globals.get("debug").get("sethook").call(BudgetHook(), LuaValue.valueOf(""), LuaValue.valueOf(HOOK_INSTRUCTIONS))
+            globals.set("debug", LuaValue.NIL)
+        }
+        evalScript(null, TODOLIB)
+        try {
+            evalScript(null, configScript)
+        } catch (e: LuaError) {
+            Log.w(TodoApplication.config.TAG, "Lua execution failed " + e.message)
+            configError = e.message
+        }
+
+    }
+
+    /* Starts a budget of `ms` milliseconds for the scripts, 0 for no budget */
+    fun startBudget(ms: Int) {
+        budgetMs = ms
+        deadline = if (ms > 0) System.nanoTime() + ms * 1000000L else 0L
+        budgetExceeded = false
+    }
+
+    fun endBudget() {
+        if (budgetExceeded) {
+            // Keys cached during this lease can be the fallback values
+            clearKeys(null)
+            budgetExceeded = false
+        }
+        deadline = 0L
+    }
+
+    // Aborts the running script when the budget is used up
+    private inner class BudgetHook : TwoArgFunction() {
+        override fun call(event: LuaValue, line: LuaValue): LuaValue {
+            if (deadline != 0L && System.nanoTime() > deadline) {
+                if (!budgetExceeded) {
+                    Log.w(Interpreter.tag, "Lua budget of $budgetMs ms exceeded, not using the scripts until the next refresh")
+                }
+                budgetExceeded = true
+                throw LuaError("Lua budget of $budgetMs ms exceeded")
+            }
+            return LuaValue.NONE
+        }
+    }
+
+    // Calls a Lua function unless the budget is used up and records it in the profiler
+    // if that is enabled. Returns null if the call failed or was skipped.
+    private inline fun <T> profiled(moduleName: String, name: String, call: () -> T): T? {
+        val profiler = Interpreter.profiler.takeIf { it.enabled }
+        if (budgetExceeded) {
+            profiler?.record(moduleName, name, 0, LuaProfiler.Outcome.SKIPPED)
+            return null
+        }
+        val start = if (profiler != null) System.nanoTime() else 0L
+        var outcome = LuaProfiler.Outcome.ERROR
+        try {
+            return call().also { outcome = LuaProfiler.Outcome.OK }
+        } catch (e: LuaError) {
+            if (budgetExceeded) outcome = LuaProfiler.Outcome.ABORTED
+            Log.d(TAG, "Lua execution failed " + e.message)
+            return null
+        } finally {
+            profiler?.record(moduleName, name, System.nanoTime() - start, outcome)
+        }
+    }
+
+    /* Evaluates `script` in `moduleName` unless it was already, errors are logged */
+    fun sync(moduleName: String, script: String?) {
+        if (syncedScripts.containsKey(moduleName) && syncedScripts[moduleName] == script) {
+            return
+        }
+        try {
+            evalScript(moduleName, script)
+        } catch (e: LuaError) {
+            Log.d(TAG, "Lua execution failed " + e.message)
+        }
+    }
+
+    override fun tasklistTextSize(): Float? {
+        return callZeroArgLuaFunction(CONFIG_TASKLIST_TEXT_SIZE_SP) { it.tofloat() }
+    }
+
+    // Callback to determine the theme. Return true for dark.
+    override fun configTheme(): String? {
+        return callZeroArgLuaFunction(CONFIG_THEME) { it.toString() }
+    }
+
+    override fun onFilterCallback(moduleName: String, t: Task): Pair<Boolean, String> {
+        val module = globals.get(moduleName).checktable()
+        if (module == LuaValue.NIL) {
+            return Pair(true, "true")
+        }
+        val onFilter = module.get(ON_FILTER_NAME)
+        if (!onFilter.isnil()) {
+            val args = fillOnFilterVarargs(t)
+            profiled(moduleName, ON_FILTER_NAME) { onFilter.call(args.arg1(), args.arg(2), args.arg(3)) }?.let { result ->
+                return Pair(result.toboolean(), result.toString())
+            }
+        } else if (!module.get(ON_FILTER_BATCH_NAME).isnil()) {
+            val result = onFilterBatch(moduleName, listOf(t))?.get(0) ?: true
+            return Pair(result, result.toString())
+        }
+        return Pair(true, "true")
+    }
+
+    override fun hasFilterCallback(moduleName: String): Boolean {
+        return try {
+            val module = globals.get(moduleName).checktable() ?: globals
+            !module.get(ON_FILTER_NAME).isnil() || !module.get(ON_FILTER_BATCH_NAME).isnil()
+        } catch (e: LuaError) {
+            Log.e(TAG, "Lua error: ${e.message} )")
+            false
+        }
+    }
+
+    override fun hasOnSortCallback(moduleName: String): Boolean {
+        return try {
+            val module = globals.get(moduleName).checktable() ?: globals
+            !module.get(ON_SORT_NAME).isnil() || !module.get(ON_SORT_KEYS_NAME).isnil()
+        } catch (e: LuaError) {
+            Log.e(TAG, "Lua error: ${e.message} )")
+            false
+        }
+    }
+
+    override fun hasOnGroupCallback(moduleName: String): Boolean {
+        return try {
+            val module = globals.get(moduleName).checktable() ?: globals
+            !module.get(ON_GROUP_NAME).isnil() || !module.get(ON_GROUP_KEYS_NAME).isnil()
+        } catch (e: LuaError) {
+            Log.e(TAG, "Lua error: ${e.message} )")
+            false
+        }
+    }
+
+    override fun onSortCallback(moduleName: String, t: Task): String {
+        val module = try {
+            globals.get(moduleName).checktable()
+        } catch (e: LuaError) {
+            Log.e(TAG, "Lua error: ${e.message} )")
+            LuaValue.NIL
+        }
+        if (module == LuaValue.NIL) {
+            return ""
+        }
+        val callback = module.get(ON_SORT_NAME)
+        if (callback.isnil() && !module.get(ON_SORT_KEYS_NAME).isnil()) {
+            return onSortKeys(moduleName, listOf(t))?.get(0) ?: ""
+        }
+        return sortKeys.get(moduleName, t) { executeCallback(moduleName, ON_SORT_NAME, callback, it) ?: "" }
+    }
+
+    override fun onGroupCallback(moduleName: String, t: Task): String? {
+        val module = getModule(moduleName)
+        if (module == LuaValue.NIL) {
+            return null
+        }
+        val callback = module.get(ON_GROUP_NAME)
+        if (callback.isnil() && !module.get(ON_GROUP_KEYS_NAME).isnil()) {
+            return onGroupKeys(moduleName, listOf(t))?.get(0)
+        }
+        return groupKeys.get(moduleName, t) { executeCallback(moduleName, ON_GROUP_NAME, callback, it) }
+    }
+
+    private fun clearKeys(moduleName: String?) {
+        sortKeys.clear(moduleName)
+        groupKeys.clear(moduleName)
+        if (moduleName == null) taskArgs.clear()
+    }
+
+    private fun getModule(moduleName: String): LuaValue {
+        return try {
+            globals.get(moduleName).checktable()
+        } catch (e: LuaError) {
+            Log.e(TAG, "Lua error: ${e.message} )")
+            LuaValue.NIL
+        }
+    }
+
+    private fun executeCallback(moduleName: String, name: String, callback: LuaValue, t: Task): String? {
+        if (!callback.isnil()) {
+            val args = fillOnFilterVarargs(t)
+            return profiled(moduleName, name) { callback.call(args.arg1(), args.arg(2), args.arg(3)).tojstring() }
+        }
+        return null
+    }
+
+    override fun hasCallback(moduleName: String, name: String): Boolean {
+        val module = getModule(moduleName)
+        return module != LuaValue.NIL && !module.get(name).isnil()
+    }
+
+    override fun onFilterBatch(moduleName: String, tasks: List<Task>): BooleanArray? {
+        val result = executeBatchCallback(moduleName, ON_FILTER_BATCH_NAME, tasks) ?: return null
+        return BooleanArray(tasks.size) { result.get(it + 1).toboolean() }
+    }
+
+    override fun onSortKeys(moduleName: String, tasks: List<Task>): List<String>? {
+        val result = executeBatchCallback(moduleName, ON_SORT_KEYS_NAME, tasks) ?: return null
+        return List(tasks.size) { result.get(it + 1).let { key -> if (key.isnil()) "" else key.tojstring() } }
+    }
+
+    override fun onGroupKeys(moduleName: String, tasks: List<Task>): List<String?>? {
+        val result = executeBatchCallback(moduleName, ON_GROUP_KEYS_NAME, tasks) ?: return null
+        return List(tasks.size) { result.get(it + 1).let { key -> if (key.isnil() || key == LuaValue.FALSE) null else key.tojstring() } }
+    }
+
+    // Calls a batch callback with an array of {task, fields, extensions} tables, returns the
+    // resulting array or null if the callback is not defined, failed or returned the wrong length
+    private fun executeBatchCallback(moduleName: String, name: String, tasks: List<Task>): LuaTable? {
+        val module = getModule(moduleName)
+        if (module == LuaValue.NIL) {
+            return null
+        }
+        val callback = module.get(name)
+        if (callback.isnil()) {
+            return null
+        }
+        val batch = LuaTable(tasks.size, 0)
+        tasks.forEachIndexed { idx, t ->
+            val args = fillOnFilterVarargs(t)
+            val item = LuaTable()
+            item.rawset("task", args.arg1())
+            item.rawset("fields", args.arg(2))
+            item.rawset("extensions", args.arg(3))
+            batch.rawset(idx + 1, item)
+        }
+        val result = profiled(moduleName, name) { callback.call(batch) } ?: return null
+        if (!result.istable()) {
+            Log.d(TAG, "$name should return a table")
+            return null
+        }
+        if (result.rawlen() != tasks.size) {
+            Log.d(TAG, "$name returned ${result.rawlen()} results for ${tasks.size} tasks")
+            return null
+        }
+        return result.checktable()
+    }
+
+    override fun onDisplayCallback(moduleName: String, t: Task): String? {
+        val module = getModule(moduleName)
+        if (module == LuaValue.NIL) {
+            return null
+        }
+        val callback = module.get(ON_DISPLAY_NAME)
+        return executeCallback(moduleName, ON_DISPLAY_NAME, callback, t)
+    }
+
+    override fun onAddCallback(t: Task): Task? {
+        val callback = globals.get(ON_ADD_NAME)
+        val result = executeCallback(CONFIG_MODULE, ON_ADD_NAME, callback, t)
+        return if (result!=null) Task(result) else null
+    }
+
+    override fun onTextSearchCallback(moduleName: String, input: String, search: String, caseSensitive: Boolean): Boolean? {
+        val module = getModule(moduleName)
+        if (module == LuaValue.NIL) {
+            return null
+        }
+        val onFilter = module.get(ON_TEXTSEARCH_NAME)
+        if (!onFilter.isnil()) {
+            return profiled(moduleName, ON_TEXTSEARCH_NAME) {
+                onFilter.invoke(LuaString.valueOf(input), LuaString.valueOf(search), LuaBoolean.valueOf(caseSensitive)).arg1().toboolean()
+            }
+        }
+        return null
+    }
+
+    override fun evalScript(moduleName: String?, script: String?): AbstractInterpreter {
+        val today = EpochDay.today()
+        if (moduleName == null || today != keysDay) {
+            // Any module can use the global functions or the date
+            clearKeys(null)
+            moduleScripts.clear()
+            syncedScripts.clear()
+            keysDay = today
+        }
+        if (moduleName != null) {
+            syncedScripts[moduleName] = script
+            if (moduleScripts.containsKey(moduleName) && moduleScripts[moduleName] == script && globals.get(moduleName).istable()) {
+                // Unchanged, the module still has everything the script defined
+                return this
+            }
+            clearKeys(moduleName)
+            moduleScripts.remove(moduleName)
+            val module = LuaTable.tableOf()
+            val metatable = LuaValue.tableOf()
+            metatable.set("__index", globals)
+            module.setmetatable(metatable)
+            globals.set(moduleName, module)
+            script?.let { load(moduleName, script, module).call() }
+            // Only after it ran without errors, a failing script is run again next time
+            moduleScripts[moduleName] = script
+        } else {
+            // Named like globals.load(script) does for the same error messages
+            script?.let { load(script, script, globals).call() }
+        }
+
+        return this
+    }
+
+    private fun compiled(chunkName: String, script: String): Prototype {
+        val key = Pair(chunkName, script)
+        synchronized(compiledScripts) { compiledScripts[key] }?.let { return it }
+        // Prototypes don't refer to the globals, they are shared by all instances
+        val prototype = globals.compilePrototype(StringReader(script), chunkName)
+        synchronized(compiledScripts) { compiledScripts[key] = prototype }
+        return prototype
+    }
+
+    /* Loads a script from its shared prototype */
+    private fun load(chunkName: String, script: String, env: LuaValue): LuaValue {
+        val start = System.nanoTime()
+        val prototype = compiled(chunkName, script)
+        val name = if (chunkName == script) CONFIG_MODULE else chunkName
+        return globals.loader.load(prototype, chunkName, env).also {
+            reportLoad(name, start)
+        }
+    }
+
+    private fun reportLoad(name: String, start: Long) {
+        val ms = (System.nanoTime() - start) / 1000000.0
+        val report = "${"%.1f".format(ms)} ms"
+        Log.i(Interpreter.tag, "Loaded $name in $report")
+        synchronized(loadTimes) { loadTimes[name] = report }
+    }
+
+    // Fill the arguments for the onFilter callback. They are built once per task version
+    // and shared by all callbacks, script.en.md tells scripts not to change them.
+    private fun fillOnFilterVarargs(t: Task): Varargs {
+        val useUUIDs = TodoApplication.config.useUUIDs
+        return taskArgs.get(if (useUUIDs) "uuid" else "", t) { task ->
+            val extensionTable = LuaTable.tableOf()
+            for ((key, value) in task.extensions) {
+                extensionTable.set(key, value)
+            }
+            LuaValue.varargsOf(arrayOf(LuaValue.valueOf(task.inFileFormat(useUUIDs)), TaskFields(WeakReference(task)), extensionTable))
+        }
+    }
+
+    /* The fields table of a task, a field is converted the first time it is used.
+    ** The task is weakly referenced so the cached arguments don't keep it alive.
+     */
+    private class TaskFields(private val task: WeakReference<Task>) : LuaTable() {
+        private var complete = false
+
+        init {
+            setmetatable(META)
+        }
+
+        // Iterating with pairs or next needs all fields
+        override fun next(key: LuaValue): Varargs {
+            if (!complete) {
+                complete = true
+                NAMES.forEach { if (rawget(it).isnil()) resolve(it) }
+            }
+            return super.next(key)
+        }
+
+        fun resolve(name: String): LuaValue {
+            val task = task.get() ?: return LuaValue.NIL
+            val value = when (name) {
+                "due" -> epochDayToLuaLong(task.dueDay)
+                "threshold" -> epochDayToLuaLong(task.thresholdDay)
+                "createdate" -> epochDayToLuaLong(task.createDay)
+                "completiondate" -> epochDayToLuaLong(task.completionDay)
+                "text" -> LuaValue.valueOf(task.alphaParts)
+                "recurrence" -> task.recurrencePattern?.let { LuaValue.valueOf(it) } ?: LuaValue.NIL
+                "completed" -> LuaBoolean.valueOf(task.isCompleted())
+                "priority" -> task.priority.code.let { if (it != "-") LuaValue.valueOf(it) else LuaValue.NIL }
+                "tags" -> javaListToLuaTable(task.tags)
+                "lists" -> javaListToLuaTable(task.lists)
+                else -> LuaValue.NIL
+            }
+            if (!value.isnil()) rawset(name, value)
+            return value
+        }
+
+        companion object {
+            val NAMES = listOf("due", "threshold", "createdate", "completiondate", "text",
+                    "recurrence", "completed", "priority", "tags", "lists")
+
+            val META: LuaTable = LuaTable.tableOf().apply {
+                set(LuaValue.INDEX, object : TwoArgFunction() {
+                    override fun call(table: LuaValue, key: LuaValue): LuaValue {
+                        return (table as? TaskFields)?.resolve(key.tojstring()) ?: LuaValue.NIL
+                    }
+                })
+            }
+        }
+    }
+
+    private fun epochDayToLuaLong(epochDay: Int): LuaValue {
+        epochDayToDateTime(epochDay)?.let {
+            return LuaValue.valueOf((it.getMilliseconds(TimeZone.getDefault()) / 1000).toDouble())
+        }
+        return LuaValue.NIL
+    }
+
+    private fun javaListToLuaTable(javaList: Iterable<String>?): LuaValue {
+        val luaTable = LuaValue.tableOf()
+        javaList?.forEach {
+            luaTable.set(it, LuaValue.TRUE)
+        }
+        return luaTable
+    }
+
+    // Call a Lua function `name`
+    // Use unpackResult to transform the resulting LuaValue to the expected return type `T`
+    // Returns null if the function is not found or if a `LuaError` occurred
+    private fun <T> callZeroArgLuaFunction(name: String, unpackResult: (LuaValue) -> T?): T? {
+        val function = globals.get(name)
+        if (!function.isnil()) {
+            return profiled(CONFIG_MODULE, name) { unpackResult(function.call()) }
+        }
+        return null
+
+    }
+
+    companion object {
+        // Name of the global functions in the load times and the profiler
+        const val CONFIG_MODULE = "config"
+
+        // Instructions between checks of the budget
+        private const val HOOK_INSTRUCTIONS = 1000
+
+        private val TODOLIB = readAsset(TodoApplication.app.assets, "lua/todolib.lua")
+
+        // Compiled scripts by module name and script
+        private const val MAX_COMPILED = 16
+        private val compiledScripts = object : LinkedHashMap<Pair<String, String>, Prototype>(MAX_COMPILED, 0.75f, true) {
+            override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Pair<String, String>, Prototype>?): Boolean {
+                return size > MAX_COMPILED
+            }
+        }
+
+        // How long the last load of each module took
+        private val loadTimes = LinkedHashMap<String, String>()
+
+        /* How long the last load of each module took */
+        fun scriptLoadTimes(): Map<String, String> = synchronized(loadTimes) { LinkedHashMap(loadTimes) }
+    }
+}
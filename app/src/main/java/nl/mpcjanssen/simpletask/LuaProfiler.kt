@@ -0,0 +1,103 @@
+package nl.mpcjanssen.simpletask
+
+import java.util.*
+import java.util.concurrent.ConcurrentSkipListMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Number of calls, time and errors of the Lua callbacks per module and callback.
+ *
+ * The 99th percentile is computed from the last [SAMPLES] calls of a callback.
+ * Recording doesn't lock, callers skip it when the profiler is not [enabled].
+ */
+class LuaProfiler {
+    enum class Outcome { OK, ERROR, ABORTED, SKIPPED }
+
+    class Stats {
+        private val callCount = AtomicLong()
+        private val errorCount = AtomicLong()
+        private val abortedCount = AtomicLong()
+        private val skippedCount = AtomicLong()
+        private val nanos = AtomicLong()
+        // Ring of the recent call times, `sampled` counts all samples written
+        private val samples = AtomicLongArray(SAMPLES)
+        private val sampled = AtomicLong()
+
+        val calls: Long
+            get() = callCount.get()
+        val errors: Long
+            get() = errorCount.get()
+        val aborted: Long
+            get() = abortedCount.get()
+        val skipped: Long
+            get() = skippedCount.get()
+        val totalNanos: Long
+            get() = nanos.get()
+
+        internal fun add(nanos: Long, outcome: Outcome) {
+            when (outcome) {
+                Outcome.SKIPPED -> {
+                    skippedCount.incrementAndGet()
+                    return
+                }
+                Outcome.ERROR -> errorCount.incrementAndGet()
+                Outcome.ABORTED -> abortedCount.incrementAndGet()
+                Outcome.OK -> Unit
+            }
+            samples.set((sampled.getAndIncrement() % SAMPLES).toInt(), nanos)
+            callCount.incrementAndGet()
+            this.nanos.addAndGet(nanos)
+        }
+
+        val p99Nanos: Long
+            get() {
+                val count = minOf(sampled.get(), SAMPLES.toLong()).toInt()
+                if (count == 0) return 0
+                val sorted = LongArray(count) { samples.get(it) }.apply { sort() }
+                return sorted[Math.ceil(count * 0.99).toInt() - 1]
+            }
+
+        override fun toString(): String {
+            val result = StringBuilder("$calls calls, total ${ms(totalNanos)} ms, p99 ${ms(p99Nanos)} ms")
+            if (errors > 0) result.append(", $errors errors")
+            if (aborted > 0) result.append(", $aborted aborted")
+            if (skipped > 0) result.append(", $skipped skipped")
+            return result.toString()
+        }
+    }
+
+    // Set from the preferences when an interpreter is leased
+    @Volatile
+    var enabled = false
+
+    // Stats by module and callback name
+    private val modules = ConcurrentSkipListMap<String, ConcurrentSkipListMap<String, Stats>>()
+
+    fun record(moduleName: String, callback: String, nanos: Long, outcome: Outcome) {
+        modules.getOrPut(moduleName) { ConcurrentSkipListMap() }.getOrPut(callback) { Stats() }.add(nanos, outcome)
+    }
+
+    fun stats(moduleName: String, callback: String): Stats? = modules[moduleName]?.get(callback)
+
+    /* One line per callback of `moduleName`, of all modules if it is null */
+    fun report(moduleName: String? = null): List<String> {
+        val result = ArrayList<String>()
+        modules.filterKeys { moduleName == null || it == moduleName }.forEach { (module, callbacks) ->
+            callbacks.forEach { (callback, stats) ->
+                result.add(if (moduleName == null) "$module.$callback: $stats" else "$callback: $stats")
+            }
+        }
+        return result
+    }
+
+    fun clear() {
+        modules.clear()
+    }
+
+    companion object {
+        const val SAMPLES = 512
+
+        private fun ms(nanos: Long) = "%.2f".format(Locale.US, nanos / 1000000.0)
+    }
+}
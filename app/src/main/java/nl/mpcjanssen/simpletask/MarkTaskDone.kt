@@ -10,7 +10,6 @@ import nl.mpcjanssen.simpletask.task.TodoList
 import nl.mpcjanssen.simpletask.util.Config
 import nl.mpcjanssen.simpletask.util.showToastShort
 import nl.mpcjanssen.simpletask.util.todayAsString
-import nl.mpcjanssen.simpletask.util.broadcastTasklistChanged
 import java.io.IOException
 import android.app.Service
 import android.os.IBinder
@@ -35,8 +34,9 @@ class MarkTaskDone : Service() {
             return START_STICKY_COMPATIBILITY
         }
         Log.d(TAG, task.text)
-        task.markComplete(todayAsString)
-        broadcastTasklistChanged(TodoApplication.app.localBroadCastManager)
+        todoList.submit("Mark done", save = false) {
+            todoList.changeTasks(listOf(task)) { it.markComplete(todayAsString) }
+        }
         with(NotificationManagerCompat.from(this)) {
             cancel(task.id.hashCode())
         }
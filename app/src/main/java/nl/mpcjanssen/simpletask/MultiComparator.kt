@@ -1,16 +1,32 @@
 package nl.mpcjanssen.simpletask
 
 import android.util.Log
+import nl.mpcjanssen.simpletask.task.EpochDay
 import nl.mpcjanssen.simpletask.task.Task
-import nl.mpcjanssen.simpletask.util.alfaSort
+import nl.mpcjanssen.simpletask.util.RefreshPipeline
 import java.util.*
 
+/**
+ * Sorts tasks by a list of sort keys.
+ *
+ * [sort] computes the keys of every task once and sorts on those (decorate, sort,
+ * undecorate), all keys are turned into ints so the sort itself only compares ints.
+ * [comparator] computes the keys on every comparison, use it to compare a few tasks.
+ */
 class MultiComparator(sorts: ArrayList<String>, today: String, caseSensitve: Boolean, createIsThreshold: Boolean, moduleName: String? = null) {
-    var comparator : Comparator<Task> = compareBy({ null })
-
     var fileOrder = true
 
-    val luaCache: MutableMap<Task, String> = HashMap<Task, String>();
+    private val keys = ArrayList<SortKey>()
+
+    private val todayDay = EpochDay.parse(today)
+
+    val comparator: Comparator<Task> = Comparator { a, b ->
+        for (key in keys) {
+            val result = key.compare(a, b)
+            if (result != 0) return@Comparator if (key.reverse) -result else result
+        }
+        0
+    }
 
     init {
         label@ for (sort in sorts) {
@@ -27,66 +43,146 @@ class MultiComparator(sorts: ArrayList<String>, today: String, caseSensitve: Boo
                     reverse = true
                 }
             }
-            var comp: (Task) -> Comparable<*>
-            val lastDate = "9999-99-99"
-            when (sortType) {
+            val lastDate = Int.MAX_VALUE
+            val key = when (sortType) {
                 "file_order" -> {
                     fileOrder = !reverse
                     break@label
                 }
-                "by_context" -> comp = { t ->
-                    val txt = t.lists?.let { alfaSort(it).firstOrNull() } ?: ""
-                    if (caseSensitve) {
-                        txt
-                    } else {
-                        txt.toLowerCase(Locale.getDefault())
-                    }
-                }
-                "by_project" -> comp = { t ->
-                    val txt = t.tags?.let { alfaSort(it).firstOrNull() } ?: ""
-                    if (caseSensitve) {
-                        txt
-                    } else {
-                        txt.toLowerCase(Locale.getDefault())
-                    }
-                }
-                "alphabetical" -> comp = if (caseSensitve) {
-                    { it.alphaParts }
+                "by_context" -> StringKey(reverse) { t -> t.lists.firstName(caseSensitve) }
+                "by_project" -> StringKey(reverse) { t -> t.tags.firstName(caseSensitve) }
+                "alphabetical" -> if (caseSensitve) {
+                    StringKey(reverse) { it.alphaParts }
                 } else {
-                    { it.alphaParts.toLowerCase(Locale.getDefault()) }
+                    StringKey(reverse) { it.alphaParts.toLowerCase(Locale.getDefault()) }
                 }
-                "by_prio" -> comp = { it.priority }
-                "completed" -> comp = { it.isCompleted() }
-                "by_creation_date" -> comp = { it.createDate ?: lastDate }
-                "in_future" -> comp = { it.inFuture(today, createIsThreshold) }
-                "by_due_date" -> comp = { it.dueDate ?: lastDate }
-                "by_threshold_date" -> comp = {
-                    val fallback = if (createIsThreshold) it.createDate ?: lastDate else lastDate
-                    it.thresholdDate ?: fallback
+                "by_prio" -> IntKey(reverse) { it.priority.ordinal }
+                "completed" -> IntKey(reverse) { if (it.isCompleted()) 1 else 0 }
+                "by_creation_date" -> IntKey(reverse) { it.createDay.orElse(lastDate) }
+                "in_future" -> IntKey(reverse) { if (it.inFuture(todayDay, createIsThreshold)) 1 else 0 }
+                "by_due_date" -> IntKey(reverse) { it.dueDay.orElse(lastDate) }
+                "by_threshold_date" -> IntKey(reverse) {
+                    val fallback = if (createIsThreshold) it.createDay.orElse(lastDate) else lastDate
+                    it.thresholdDay.orElse(fallback)
                 }
-                "by_completion_date" -> comp = { it.completionDate ?: lastDate }
+                "by_completion_date" -> IntKey(reverse) { it.completionDay.orElse(lastDate) }
                 "by_lua" -> {
                     if (moduleName == null || !Interpreter.hasOnSortCallback(moduleName)) {
                        continue@label
                     }
-                    comp = {
-                        Interpreter.onSortCallback(moduleName, it)
-//                            luaCache[it] ?: Interpreter.onSortCallback(moduleName, it).also { str ->
-//                            luaCache[it] = str
-//                        }
-                    }
+                    StringKey(reverse, { Interpreter.onSortKeys(moduleName, it) }) { Interpreter.onSortCallback(moduleName, it) }
                 }
                 else -> {
                     Log.w("MultiComparator", "Unknown sort: $sort")
                     continue@label
                 }
             }
-            comparator = if (reverse) {
-                comparator.thenByDescending(comp)
-            } else {
-                comparator.thenBy(comp)
+            keys.add(key)
+        }
+    }
+
+    /* The items sorted by the keys, items with equal keys keep their order */
+    /* Stops with a CancellationException when `refresh` is cancelled */
+    fun sort(items: List<Task>, refresh: RefreshPipeline.Refresh? = null): List<Task> {
+        val size = items.size
+        val width = keys.size
+        if (width == 0 || size < 2) return ArrayList(items)
+        // Row i holds the keys of items[i]
+        val rows = IntArray(size * width)
+        keys.forEachIndexed { column, key -> key.fill(items, rows, column, width, refresh) }
+        refresh?.checkCancelled()
+        val reversed = BooleanArray(width) { keys[it].reverse }
+        val order = IntArray(size) { it }
+        sortRows(order, rows, reversed)
+        return order.map { items[it] }
+    }
+
+    private abstract class SortKey(val reverse: Boolean) {
+        abstract fun compare(a: Task, b: Task): Int
+
+        /* Stores the key of every item as an int in `column` of `rows` */
+        abstract fun fill(items: List<Task>, rows: IntArray, column: Int, width: Int, refresh: RefreshPipeline.Refresh?)
+    }
+
+    private class IntKey(reverse: Boolean, val value: (Task) -> Int) : SortKey(reverse) {
+        override fun compare(a: Task, b: Task) = value(a).compareTo(value(b))
+
+        override fun fill(items: List<Task>, rows: IntArray, column: Int, width: Int, refresh: RefreshPipeline.Refresh?) {
+            items.forEachIndexed { idx, task -> rows[idx * width + column] = value(task) }
+        }
+    }
+
+    private class StringKey(reverse: Boolean,
+                            val batch: ((List<Task>) -> List<String>?)? = null,
+                            val value: (Task) -> String) : SortKey(reverse) {
+        override fun compare(a: Task, b: Task) = value(a).compareTo(value(b))
+
+        // Strings are stored as their rank among the distinct keys
+        override fun fill(items: List<Task>, rows: IntArray, column: Int, width: Int, refresh: RefreshPipeline.Refresh?) {
+            val batchKeys = batch?.invoke(items)?.takeIf { it.size == items.size }
+            val strings = Array(items.size) {
+                refresh?.checkCancelled(it)
+                batchKeys?.get(it) ?: value(items[it])
             }
+            val ranks = HashMap<String, Int>()
+            strings.forEach { ranks[it] = 0 }
+            ranks.keys.sorted().forEachIndexed { rank, string -> ranks[string] = rank }
+            strings.forEachIndexed { idx, string -> rows[idx * width + column] = ranks.getValue(string) }
         }
     }
 
+    companion object {
+        /* Stable bottom up merge sort of the row numbers in `order` */
+        private fun sortRows(order: IntArray, rows: IntArray, reversed: BooleanArray) {
+            val size = order.size
+            var src = order
+            var dst = IntArray(size)
+            var run = 1
+            while (run < size) {
+                var low = 0
+                while (low < size) {
+                    val middle = minOf(low + run, size)
+                    val high = minOf(low + 2 * run, size)
+                    var i = low
+                    var j = middle
+                    var k = low
+                    while (i < middle && j < high) {
+                        // Take from the right run only if it is strictly smaller to keep the order of equal rows
+                        dst[k++] = if (compareRows(rows, reversed, src[j], src[i]) < 0) src[j++] else src[i++]
+                    }
+                    while (i < middle) dst[k++] = src[i++]
+                    while (j < high) dst[k++] = src[j++]
+                    low = high
+                }
+                val done = src
+                src = dst
+                dst = done
+                run *= 2
+            }
+            if (src !== order) src.copyInto(order)
+        }
+
+        private fun compareRows(rows: IntArray, reversed: BooleanArray, a: Int, b: Int): Int {
+            val width = reversed.size
+            val rowA = a * width
+            val rowB = b * width
+            for (column in 0 until width) {
+                val result = rows[rowA + column].compareTo(rows[rowB + column])
+                if (result != 0) return if (reversed[column]) -result else result
+            }
+            return 0
+        }
+
+        private fun Int.orElse(other: Int) = if (this == EpochDay.NONE) other else this
+
+        // The first of the names in sort order, "" if there are none
+        private fun Collection<String>?.firstName(caseSensitive: Boolean): String {
+            if (this == null || isEmpty()) return ""
+            return if (caseSensitive) {
+                minOrNull()!!
+            } else {
+                map { it.toLowerCase(Locale.getDefault()) }.minOrNull()!!
+            }
+        }
+    }
 }
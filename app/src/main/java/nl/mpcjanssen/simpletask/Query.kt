@@ -6,10 +6,11 @@ import android.content.SharedPreferences
 import android.util.Log
 
 import nl.mpcjanssen.simpletask.task.*
+import nl.mpcjanssen.simpletask.util.RefreshPipeline
 import nl.mpcjanssen.simpletask.util.join
-import nl.mpcjanssen.simpletask.util.todayAsString
 import org.json.JSONObject
 import java.util.*
+import java.util.concurrent.CancellationException
 
 
 data class NamedQuery(val name: String, val query: Query) {
@@ -242,92 +243,129 @@ data class Query(val luaModule: String) {
 
     fun initInterpreter(code: String?) {
         try {
-            Interpreter.clearOnFilter(luaModule)
             Interpreter.evalScript(luaModule, code)
         } catch (e: Exception) {
             Log.d(TAG, "Lua execution failed " + e.message)
         }
     }
 
-    fun applyFilter(items: List<Task>?, showSelected: Boolean): List<Task> {
+    /* With the `index` of the list version the items are from, the priority, list and
+    ** tag filters are evaluated on the index instead of per task. See compile.
+    ** `explain` is called with the plan that filtered the items. A cancelled `refresh`
+    ** stops the filter with a CancellationException.
+     */
+    fun applyFilter(items: List<Task>?, showSelected: Boolean, index: IndexLookup? = null, version: Long = -1,
+                    withLua: Boolean = true, refresh: RefreshPipeline.Refresh? = null,
+                    explain: ((QueryPlan) -> Unit)? = null): List<Task> {
         val code = if (useScript)
             script
         else
             null
 
-        initInterpreter(code)
+        if (withLua) initInterpreter(code)
 
-
-        val filter = AndFilter()
         if (items == null) {
             return ArrayList()
         }
 
-        val today = todayAsString
         try {
-            return  items.filter {
-                if (showSelected && TodoApplication.todoList.isSelected(it)) {
-                    return@filter true
-                }
-                if (this.hideCompleted && it.isCompleted()) {
-                    return@filter false
-                }
-                if (this.hideFuture && it.inFuture(today, createIsThreshold)) {
-                    return@filter false
-                }
-                if (this.hideHidden && it.isHidden()) {
-                    return@filter false
-                }
-                if ("" == it.inFileFormat(false).trim { it <= ' ' }) {
-                    return@filter false
-                }
-                if (!filter.apply(it)) {
-                    return@filter false
-                }
-                if (useScript && !Interpreter.onFilterCallback(luaModule, it).first) {
-                    return@filter false
-                }
-                return@filter true
-            }
+            val plan = compile(showSelected, index, version, withLua)
+            return plan.filter(items, refresh).also { explain?.invoke(plan) }
+        } catch (e: CancellationException) {
+            throw e
         } catch (e: Exception) {
             Log.d(TAG, "Lua execution failed " + e.message)
         }
         return ArrayList()
     }
 
-    fun setSort(sort: ArrayList<String>) {
-        this.m_sorts = sort
+    /**
+     * The filter as a [QueryPlan]. With the `index` of the list at `version` the plan is
+     * cached for that version, a later version builds a new plan. The tasks matching
+     * the index are looked up once, the plan doesn't use the index, which follows the
+     * changes of the list.
+     * Without `withLua` the plan doesn't call the Lua callbacks of the module.
+     */
+    fun compile(showSelected: Boolean, index: IndexLookup? = null, version: Long = -1, withLua: Boolean = true): QueryPlan {
+        val today = EpochDay.today()
+        if (index == null || version < 0) {
+            return createPlan(showSelected, index, today, version, withLua)
+        }
+        val key = "$luaModule\n$showSelected\n$version\n$today\n$withLua\n$json"
+        return QueryPlan.cached(key) { createPlan(showSelected, index, today, version, withLua) }
     }
 
-    private inner class AndFilter {
-        private val filters = ArrayList<TaskFilter>()
-
-        init {
-            filters.clear()
-            if (priorities.size > 0) {
-                addFilter(ByPriorityFilter(priorities, prioritiesNot))
-            }
-            if (contexts.size > 0) {
-                addFilter(ByContextFilter(contexts, contextsNot))
-            }
-            if (projects.size > 0) {
-                addFilter(ByProjectFilter(projects, projectsNot))
-            }
-
-            if (!search.isNullOrEmpty()) {
-                addFilter(ByTextFilter(luaModule, search, false))
-            }
+    private fun createPlan(showSelected: Boolean, index: IndexLookup?, today: Int, version: Long, withLua: Boolean): QueryPlan {
+        val stages = ArrayList<QueryPlan.Stage>()
+        // Filters which can also be answered by the index
+        val indexedFilters = ArrayList<TaskFilter>()
+        if (priorities.size > 0) {
+            indexedFilters.add(ByPriorityFilter(priorities, prioritiesNot))
         }
-
-        fun addFilter(filter: TaskFilter?) {
-            if (filter != null) {
-                filters.add(filter)
+        if (contexts.size > 0) {
+            indexedFilters.add(ByContextFilter(contexts, contextsNot))
+        }
+        if (projects.size > 0) {
+            indexedFilters.add(ByProjectFilter(projects, projectsNot))
+        }
+        if (indexedFilters.isNotEmpty()) {
+            // Tasks of the list version matching the indexed filters
+            val matches = index?.invoke { indexMatches(it) }
+            if (matches != null) {
+                stages.add(QueryPlan.Stage("lists, tags and priorities (index)", QueryPlan.COST_INDEX) { task ->
+                    task in matches
+                })
+            } else {
+                stages.add(QueryPlan.Stage("lists, tags and priorities", QueryPlan.COST_FIELD) { task ->
+                    indexedFilters.all { it.apply(task) }
+                })
             }
         }
+        if (hideCompleted) {
+            stages.add(QueryPlan.Stage("hide completed", QueryPlan.COST_FIELD) { !it.isCompleted() })
+        }
+        if (hideFuture) {
+            val isThreshold = createIsThreshold
+            stages.add(QueryPlan.Stage("hide future", QueryPlan.COST_FIELD) { !it.inFuture(today, isThreshold) })
+        }
+        if (hideHidden) {
+            stages.add(QueryPlan.Stage("hide hidden", QueryPlan.COST_FIELD) { !it.isHidden() })
+        }
+        stages.add(QueryPlan.Stage("hide empty lines", QueryPlan.COST_FIELD) { !it.isBlank() })
+        if (!search.isNullOrEmpty()) {
+            val textFilter = ByTextFilter(luaModule.takeIf { withLua }, search, false)
+            stages.add(QueryPlan.Stage("search '$search'", QueryPlan.COST_TEXT) { textFilter.apply(it) })
+        }
+        if (useScript && withLua) {
+            val batch = { tasks: List<Task> -> Interpreter.onFilterBatch(luaModule, tasks) }
+                    .takeIf { Interpreter.hasCallback(luaModule, Interpreter.ON_FILTER_BATCH_NAME) }
+            stages.add(QueryPlan.Stage("Lua onFilter", QueryPlan.COST_LUA, batch) { Interpreter.onFilterCallback(luaModule, it).first })
+        }
+        val module = if (withLua) luaModule else "$luaModule without Lua"
+        val description = if (version >= 0) "$module, list version $version" else module
+        return QueryPlan(description, showSelected, stages)
+    }
 
-        fun apply(input: Task): Boolean {
-            return filters.all { it.apply(input) }
+    private fun indexMatches(index: TaskIndex): BitSet {
+        val result = index.all()
+        if (priorities.size > 0) {
+            combine(result, index.withPriorities(priorities), prioritiesNot)
         }
+        if (contexts.size > 0) {
+            combine(result, index.withLists(contexts), contextsNot)
+        }
+        if (projects.size > 0) {
+            combine(result, index.withTags(projects), projectsNot)
+        }
+        return result
+    }
+
+    private fun combine(result: BitSet, matching: BitSet, not: Boolean) {
+        if (not) result.andNot(matching) else result.and(matching)
+    }
+
+    fun setSort(sort: ArrayList<String>) {
+        this.m_sorts = sort
     }
 
     companion object {
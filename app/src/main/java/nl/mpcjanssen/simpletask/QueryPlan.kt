@@ -0,0 +1,133 @@
+package nl.mpcjanssen.simpletask
+
+import nl.mpcjanssen.simpletask.task.Task
+import nl.mpcjanssen.simpletask.util.RefreshPipeline
+
+/**
+ * A [Query] compiled into a list of checks, see [Query.compile].
+ *
+ * The checks run from cheap to expensive: index lookups first, then flags and dates
+ * of the parsed fields, then text search and finally Lua. A task is rejected by the
+ * first check it fails, so the expensive checks only see the tasks that are left.
+ *
+ * A check can also provide a `batch` version which is called once with all tasks
+ * left after the per task checks. If it returns null the check is done per task.
+ *
+ * Plans are cached by the query and the version of the task list, [explain] shows
+ * the checks and how many tasks each one rejected in the last [filter] run.
+ */
+class QueryPlan(private val description: String, private val showSelected: Boolean, stages: List<Stage>) {
+
+    class Stage(val name: String, val cost: Int,
+                val batch: ((List<Task>) -> BooleanArray?)? = null,
+                val check: (Task) -> Boolean)
+
+    // The number of tasks each stage checked and rejected in one run, by stage index
+    private class Counts(size: Int) {
+        val checked = IntArray(size)
+        val rejected = IntArray(size)
+    }
+
+    private val stages = stages.sortedBy { it.cost }
+    private val allStages = stages.indices.toList()
+
+    // Counts of the last filter run, plus the single matches since. Runs count on their
+    // own and are merged when they finish, so concurrent runs don't mix.
+    private val counts = Counts(stages.size)
+
+    fun matches(task: Task): Boolean {
+        val run = Counts(stages.size)
+        return matches(task, allStages, run).also { merge(run, false) }
+    }
+
+    private fun matches(task: Task, indices: List<Int>, run: Counts): Boolean {
+        if (showSelected && task.selected) return true
+        for (idx in indices) {
+            run.checked[idx]++
+            if (!stages[idx].check(task)) {
+                run.rejected[idx]++
+                return false
+            }
+        }
+        return true
+    }
+
+    /* Stops with a CancellationException when `refresh` is cancelled */
+    fun filter(items: List<Task>, refresh: RefreshPipeline.Refresh? = null): List<Task> {
+        val run = Counts(stages.size)
+        try {
+            return filter(items, refresh, run)
+        } finally {
+            merge(run, true)
+        }
+    }
+
+    private fun filter(items: List<Task>, refresh: RefreshPipeline.Refresh?, run: Counts): List<Task> {
+        val (batched, single) = allStages.partition { stages[it].batch != null }
+        var result = items.filterIndexed { idx, task ->
+            refresh?.checkCancelled(idx)
+            matches(task, single, run)
+        }
+        for (stageIdx in batched) {
+            refresh?.checkCancelled()
+            val candidates = result.filter { !(showSelected && it.selected) }
+            if (candidates.isEmpty()) break
+            val matched = stages[stageIdx].batch!!(candidates)
+            if (matched == null || matched.size != candidates.size) {
+                result = result.filterIndexed { idx, task ->
+                    refresh?.checkCancelled(idx)
+                    matches(task, listOf(stageIdx), run)
+                }
+                continue
+            }
+            run.checked[stageIdx] += candidates.size
+            run.rejected[stageIdx] += matched.count { !it }
+            var idx = 0
+            result = result.filter { (showSelected && it.selected) || matched[idx++] }
+        }
+        return result
+    }
+
+    /* Adds the counts of a finished run, a filter run replaces the earlier counts */
+    @Synchronized
+    private fun merge(run: Counts, replace: Boolean) {
+        for (idx in stages.indices) {
+            counts.checked[idx] = run.checked[idx] + if (replace) 0 else counts.checked[idx]
+            counts.rejected[idx] = run.rejected[idx] + if (replace) 0 else counts.rejected[idx]
+        }
+    }
+
+    /* The checks in execution order with the number of tasks they checked and rejected */
+    @Synchronized
+    fun explain(): String {
+        val result = StringBuilder("Plan for $description\n")
+        if (showSelected) result.append("  selected tasks always match\n")
+        if (stages.isEmpty()) result.append("  all tasks match\n")
+        stages.forEachIndexed { idx, stage ->
+            result.append("  ${idx + 1}. ${stage.name} (cost ${stage.cost}): checked ${counts.checked[idx]}, rejected ${counts.rejected[idx]}\n")
+        }
+        return result.toString()
+    }
+
+    companion object {
+        // Relative cost of the checks, used to order them
+        const val COST_INDEX = 1
+        const val COST_FIELD = 2
+        const val COST_TEXT = 10
+        const val COST_LUA = 100
+
+        private const val MAX_CACHED = 8
+
+        private val cache = object : LinkedHashMap<String, QueryPlan>(MAX_CACHED, 0.75f, true) {
+            override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, QueryPlan>?): Boolean {
+                return size > MAX_CACHED
+            }
+        }
+
+        /* The cached plan for `key` or the plan created by `compile` */
+        @Synchronized
+        fun cached(key: String, compile: () -> QueryPlan): QueryPlan {
+            return cache[key] ?: compile().also { cache[key] = it }
+        }
+    }
+}
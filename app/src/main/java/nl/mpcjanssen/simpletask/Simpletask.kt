@@ -100,16 +100,16 @@ class Simpletask : ThemedNoActionBarActivity() {
 
         taskAdapter = TaskAdapter(
                 completeAction = {
-                    completeTasks(it)
-                    // Update the tri state checkbox
-                    handleMode(mapOf(Mode.SELECTION to { invalidateOptionsMenu() }))
-                    TodoApplication.todoList.notifyTasklistChanged(TodoApplication.config.todoFile, save = false, refreshMainUI = true)
+                    completeTasks(it) {
+                        // Update the tri state checkbox
+                        handleMode(mapOf(Mode.SELECTION to { invalidateOptionsMenu() }))
+                    }
                 },
                 unCompleteAction = {
-                    uncompleteTasks(it)
-                    // Update the tri state checkbox
-                    handleMode(mapOf(Mode.SELECTION to { invalidateOptionsMenu() }))
-                    TodoApplication.todoList.notifyTasklistChanged(TodoApplication.config.todoFile, true)
+                    uncompleteTasks(it) {
+                        // Update the tri state checkbox
+                        handleMode(mapOf(Mode.SELECTION to { invalidateOptionsMenu() }))
+                    }
                 },
                 onClickAction = {
                     val newSelectedState = !TodoApplication.todoList.isSelected(it)
@@ -234,7 +234,6 @@ class Simpletask : ThemedNoActionBarActivity() {
                     }
                 } else if (receivedIntent.action == Constants.BROADCAST_TASKLIST_CHANGED) {
                     Log.i(TAG, "Tasklist changed, refiltering adapter")
-                    taskAdapter.setFilteredTasks(this@Simpletask, TodoApplication.config.mainQuery)
                     runOnUiThread {
                         uiHandler.forEvent(Event.TASK_LIST_CHANGED)
                     }
@@ -334,6 +333,7 @@ class Simpletask : ThemedNoActionBarActivity() {
         m_broadcastReceiver?.let {
             localBroadcastManager!!.unregisterReceiver(it)
         }
+        taskAdapter.shutdown()
     }
 
 
@@ -734,36 +734,42 @@ class Simpletask : ThemedNoActionBarActivity() {
         builder.setSingleChoiceItems(priorityArr, priorityIdx, { dialog, which ->
             dialog.dismiss()
             val priority = Priority.toPriority(priorityArr[which])
-            TodoApplication.todoList.prioritize(tasks, priority)
-            TodoApplication.todoList.notifyTasklistChanged(TodoApplication.config.todoFile, true)
+            TodoApplication.todoList.submit("Prioritize") {
+                TodoApplication.todoList.prioritize(tasks, priority)
+            }
         })
         builder.show()
 
     }
 
-    private fun completeTasks(task: Task) {
+    private fun completeTasks(task: Task, done: (() -> Unit)? = null) {
         val tasks = ArrayList<Task>()
         tasks.add(task)
-        completeTasks(tasks)
+        completeTasks(tasks, done)
     }
 
-    private fun completeTasks(tasks: List<Task>) {
-        TodoApplication.todoList.complete(tasks, TodoApplication.config.hasKeepPrio, TodoApplication.config.hasAppendAtEnd)
-        if (TodoApplication.config.isAutoArchive) {
-            archiveTasks(false)
+    private fun completeTasks(tasks: List<Task>, done: (() -> Unit)? = null) {
+        TodoApplication.todoList.submit("Complete", done = {
+            // Archive after the tasks are marked completed
+            if (TodoApplication.config.isAutoArchive) {
+                archiveTasks(false)
+            }
+            done?.invoke()
+        }) {
+            TodoApplication.todoList.complete(tasks, TodoApplication.config.hasKeepPrio, TodoApplication.config.hasAppendAtEnd)
         }
-        TodoApplication.todoList.notifyTasklistChanged(TodoApplication.config.todoFile, true)
     }
 
-    private fun uncompleteTasks(task: Task) {
+    private fun uncompleteTasks(task: Task, done: (() -> Unit)? = null) {
         val tasks = ArrayList<Task>()
         tasks.add(task)
-        uncompleteTasks(tasks)
+        uncompleteTasks(tasks, done)
     }
 
-    private fun uncompleteTasks(tasks: List<Task>) {
-        TodoApplication.todoList.uncomplete(tasks)
-        TodoApplication.todoList.notifyTasklistChanged(TodoApplication.config.todoFile, true)
+    private fun uncompleteTasks(tasks: List<Task>, done: (() -> Unit)? = null) {
+        TodoApplication.todoList.submit("Uncomplete", done = done) {
+            TodoApplication.todoList.uncomplete(tasks)
+        }
     }
 
     private fun deferTasks(tasks: List<Task>, dateType: DateType) {
@@ -782,8 +788,9 @@ class Simpletask : ThemedNoActionBarActivity() {
                         var startMonth = month
                         startMonth++
                         val date = DateTime.forDateOnly(year, startMonth, day)
-                        TodoApplication.todoList.defer(date.format(Constants.DATE_FORMAT), tasks, dateType)
-                        TodoApplication.todoList.notifyTasklistChanged(TodoApplication.config.todoFile, true)
+                        TodoApplication.todoList.submit("Defer") {
+                            TodoApplication.todoList.defer(date.format(Constants.DATE_FORMAT), tasks, dateType)
+                        }
                     },
                             today.year!!,
                             today.month!! - 1,
@@ -795,8 +802,9 @@ class Simpletask : ThemedNoActionBarActivity() {
                     dialog.show()
                 } else {
 
-                    TodoApplication.todoList.defer(input, tasks, dateType)
-                    TodoApplication.todoList.notifyTasklistChanged(TodoApplication.config.todoFile, true)
+                    TodoApplication.todoList.submit("Defer") {
+                        TodoApplication.todoList.defer(input, tasks, dateType)
+                    }
 
                 }
 
@@ -810,9 +818,9 @@ class Simpletask : ThemedNoActionBarActivity() {
         val title = getString(R.string.delete_task_title)
                 .replaceFirst(Regex("%s"), numTasks.toString())
         val delete = DialogInterface.OnClickListener { _, _ ->
-            TodoApplication.todoList.removeAll(tasks)
-            TodoApplication.todoList.notifyTasklistChanged(TodoApplication.config.todoFile, true)
-            invalidateOptionsMenu()
+            TodoApplication.todoList.submit("Delete", done = { invalidateOptionsMenu() }) {
+                TodoApplication.todoList.removeAll(tasks)
+            }
         }
         showConfirmationDialog(this, R.string.delete_task_message, delete, title)
     }
@@ -827,6 +835,8 @@ class Simpletask : ThemedNoActionBarActivity() {
             tasksToArchive.addAll(taskAdapter.visibleLines.asSequence()
                     .filterNot { it.header }
                     .map { (it as TaskLine).task }
+                    // The lines can still show the tasks from before they were completed
+                    .mapNotNull { TodoApplication.todoList.getTaskWithId(it.id) }
                     .filter {it.isCompleted()})
         }
 
@@ -1101,8 +1111,10 @@ class Simpletask : ThemedNoActionBarActivity() {
                 Task::lists,
                 Task::addList,
                 Task::removeList
-        ) {
-            TodoApplication.todoList.notifyTasklistChanged(TodoApplication.config.todoFile, true)
+        ) { changeTask ->
+            TodoApplication.todoList.submit("Update lists") {
+                TodoApplication.todoList.changeTasks(checkedTasks, changeTask)
+            }
         }
     }
 
@@ -1114,8 +1126,10 @@ class Simpletask : ThemedNoActionBarActivity() {
                 Task::tags,
                 Task::addTag,
                 Task::removeTag
-        ) {
-            TodoApplication.todoList.notifyTasklistChanged(TodoApplication.config.todoFile, true)
+        ) { changeTask ->
+            TodoApplication.todoList.submit("Update tags") {
+                TodoApplication.todoList.changeTasks(checkedTasks, changeTask)
+            }
         }
     }
 
@@ -1249,9 +1263,8 @@ class Simpletask : ThemedNoActionBarActivity() {
                         val query = it.second.query
                         intent = query.saveInIntent(intent)
                         TodoApplication.config.mainQuery = query
-                        taskAdapter.setFilteredTasks(this@Simpletask, query)
-                        runOnUiThread {
-                            closeDrawer(SAVED_FILTER_DRAWER)
+                        closeDrawer(SAVED_FILTER_DRAWER)
+                        taskAdapter.setFilteredTasks(this@Simpletask, query) {
                             updateQuickFilterDrawer()
                         }
                     }
@@ -1281,21 +1294,24 @@ class Simpletask : ThemedNoActionBarActivity() {
         }
 
         private fun updateTaskList(query: Query, afterOnUi: ()->Unit) {
-            runOnMainThread {
-                taskAdapter.setFilteredTasks(this@Simpletask, query)
-                runOnUiThread(afterOnUi)
-            }
+            taskAdapter.setFilteredTasks(this@Simpletask, query, afterOnUi)
         }
 
         private fun updateQuickFilterDrawer() {
             updateFilterBar()
-            val decoratedContexts = alfaSort(TodoApplication.todoList.contexts, TodoApplication.config.sortCaseSensitive, prefix = "-").map { "@$it" }
-            val decoratedProjects = alfaSort(TodoApplication.todoList.projects, TodoApplication.config.sortCaseSensitive, prefix = "-").map { "+$it" }
+            val listCounts = TodoApplication.todoList.listCounts
+            val tagCounts = TodoApplication.todoList.tagCounts
+            val decoratedContexts = alfaSort(listCounts.keys, TodoApplication.config.sortCaseSensitive, prefix = "-").map { "@$it" }
+            val decoratedProjects = alfaSort(tagCounts.keys, TodoApplication.config.sortCaseSensitive, prefix = "-").map { "+$it" }
+            val counts = HashMap<String, Int>()
+            listCounts.forEach { (name, count) -> counts["@$name"] = count.open }
+            tagCounts.forEach { (name, count) -> counts["+$name"] = count.open }
             val drawerAdapter = DrawerAdapter(layoutInflater,
                     TodoApplication.config.listTerm,
                     decoratedContexts,
                     TodoApplication.config.tagTerm,
-                    decoratedProjects)
+                    decoratedProjects,
+                    counts)
 
             binding.filterDrawer.adapter = drawerAdapter
             binding.filterDrawer.choiceMode = AbsListView.CHOICE_MODE_MULTIPLE
@@ -53,6 +53,7 @@ import nl.mpcjanssen.simpletask.remote.BackupInterface
 import nl.mpcjanssen.simpletask.remote.FileDialog
 import nl.mpcjanssen.simpletask.remote.FileStore
 import nl.mpcjanssen.simpletask.task.Task
+import nl.mpcjanssen.simpletask.task.TaskChanges
 import nl.mpcjanssen.simpletask.task.TodoList
 import nl.mpcjanssen.simpletask.util.*
 import nl.mpcjanssen.simpletask.Constants
@@ -99,7 +100,6 @@ class TodoApplication : Application() {
                         CalendarSync.syncLater()
                         redrawWidgets()
                         updateWidgets()
-                        updatePinnedNotifications()
                     }
                     intent.action == Constants.BROADCAST_UPDATE_WIDGETS -> {
                         Log.i(TAG, "Refresh widgets from broadcast")
@@ -114,6 +114,11 @@ class TodoApplication : Application() {
         FileStoreActionQueue.start()
 
         localBroadCastManager.registerReceiver(m_broadcastReceiver, intentFilter)
+        // Only the notifications and display texts of changed tasks have to be updated
+        todoList.addChangeListener { changes ->
+            Interpreter.invalidateDisplayTexts(changes)
+            runOnMainThread(Runnable { updatePinnedNotifications(changes) })
+        }
         Log.i(TAG, "onCreate()")
         Log.i(TAG, "Created todolist $todoList")
         Log.i(TAG, "Started ${appVersion(this)}")
@@ -218,12 +223,12 @@ class TodoApplication : Application() {
         }
     }
 
-    fun updatePinnedNotifications() {
+    fun updatePinnedNotifications(changes: TaskChanges? = null) {
         Log.i(TAG, "Updating pinned notifications")
         val notificationManager: NotificationManager = getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager
         notificationManager.getActiveNotifications().forEach { 
             val taskId = it.notification.extras.getString(Constants.EXTRA_TASK_ID)
-            if (taskId != null) {
+            if (taskId != null && (changes == null || changes.affects(taskId))) {
                 val taskText = TodoApplication.todoList.getTaskWithId(taskId)?.text
                 val notification = NotificationCompat.Builder(this, it.notification).setContentTitle(taskText).build()
                 notificationManager.notify(it.id, notification)
@@ -12,11 +12,16 @@ data class TaskLine(override val task: Task) : VisibleLine {
     override val title: String?
         get() = null
     override val header = false
-
+    // The state of the task when the line was created, to find changed lines
+    val version = task.version
+    val selected = task.selected
 }
 
-data class HeaderLine(override var title: String) : VisibleLine {
+// `occurrence` counts the earlier headers of the same group, groups repeat if they aren't sorted together
+data class HeaderLine(override var title: String, val occurrence: Int = 0) : VisibleLine {
     override val task: Task?
         get() =  null
     override val header = true
-}
\ No newline at end of file
+    // The title without the count
+    val group = title
+}
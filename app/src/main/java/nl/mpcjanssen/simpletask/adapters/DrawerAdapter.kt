@@ -16,7 +16,9 @@ class DrawerAdapter(private val m_inflater: LayoutInflater,
                     contextHeader: String,
                     contexts: List<String>,
                     projectHeader: String,
-                    projects: List<String>) : BaseAdapter(), ListAdapter {
+                    projects: List<String>,
+                    // Number of open tasks per drawer item
+                    private val counts: Map<String, Int> = emptyMap()) : BaseAdapter(), ListAdapter {
 
     internal var items: ArrayList<String>
     var contextHeaderPosition: Int = 0
@@ -73,7 +75,8 @@ class DrawerAdapter(private val m_inflater: LayoutInflater,
                 view = m_inflater.inflate(R.layout.drawer_list_item_checked, parent, false)
             }
             tv = view as TextView
-            tv.text = items[position].substring(1)
+            val count = counts[items[position]]
+            tv.text = if (count != null) "${items[position].substring(1)} ($count)" else items[position].substring(1)
         }
 
         return view
@@ -36,11 +36,14 @@ class ByContextFilter(
         return if (not) !filter(task) else filter(task)
     }
 
+    private val ids = NamePool.lists.idSet(contexts)
+    private val matchNone = contexts.contains("-")
+
     private fun filter(input: Task): Boolean {
-        val match = input.lists?.any { contexts.contains(it) } ?: false
+        val lists = input.listIds
         /*
          * Match tasks without context if applyFilter contains "-"
 		 */
-        return match || input.lists == null && contexts.contains("-")
+        return if (lists == null) matchNone else lists.intersects(ids)
     }
 }
@@ -38,11 +38,14 @@ class ByProjectFilter(
         return if (not) !filter(task) else filter(task)
     }
 
+    private val ids = NamePool.tags.idSet(projects)
+    private val matchNone = projects.contains("-")
+
     fun filter(input: Task): Boolean {
-        val match = input.tags?.any { projects.contains(it) } ?: false
+        val tags = input.tagIds
         /*
          * Match tasks without project if applyFilter contains "-"
 		 */
-        return match || (input.tags == null  && projects.contains("-"))
+        return if (tags == null) matchNone else tags.intersects(ids)
     }
 }
@@ -6,11 +6,11 @@ import java.util.*
 /**
  * A applyFilter that matches Tasks containing the specified text
  */
-class ByTextFilter(val moduleName : String, searchText: String?, internal val isCaseSensitive: Boolean) : TaskFilter {
+class ByTextFilter(val moduleName : String?, searchText: String?, internal val isCaseSensitive: Boolean) : TaskFilter {
     val text = searchText ?: ""
 
-    private val parts: List<String>
-        get() = cased(text).split("\\s".toRegex()).dropLastWhile { it.isEmpty() }
+    // Split once, not for every task
+    private val parts: List<String> = cased(text).split("\\s".toRegex()).dropLastWhile { it.isEmpty() }
 
     override fun apply(task: Task): Boolean {
         return scriptResult(task)?.let { luaval ->
@@ -21,7 +21,8 @@ class ByTextFilter(val moduleName : String, searchText: String?, internal val is
     }
 
     private fun scriptResult(task: Task): Boolean? {
-        return Interpreter.onTextSearchCallback(moduleName, task.text, text, isCaseSensitive)
+        val module = moduleName ?: return null
+        return Interpreter.onTextSearchCallback(module, task.text, text, isCaseSensitive)
     }
 
 
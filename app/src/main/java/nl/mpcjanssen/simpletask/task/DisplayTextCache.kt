@@ -0,0 +1,58 @@
+package nl.mpcjanssen.simpletask.task
+
+import java.util.*
+
+/**
+ * The last [maxEntries] texts shown for tasks, e.g. the result of the Lua onDisplay
+ * callback, so scrolling back and forth doesn't compute them again.
+ *
+ * An entry is keyed by the module, the task id and version and a hash of what else
+ * the text depends on (the script of the module and the day, scripts often compare
+ * with the current date). Task versions are unique, a task that replaces another one
+ * with the same id never gets its entry. Entries of changed or removed tasks are
+ * dropped with [invalidate], a reload drops all of them. All methods are synchronized.
+ */
+class DisplayTextCache(private val maxEntries: Int = MAX_ENTRIES) {
+    data class Key(val module: String, val taskId: String, val version: Long, val hash: Int)
+
+    // A cached text, the text is null if the task is shown as is
+    class Cached(val text: String?)
+
+    private val entries = object : LinkedHashMap<Key, Cached>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Key, Cached>?): Boolean {
+            return size > maxEntries
+        }
+    }
+
+    val size: Int
+        @Synchronized get() = entries.size
+
+    fun key(module: String, task: Task, hash: Int) = Key(module, task.id, task.version, hash)
+
+    @Synchronized
+    fun get(key: Key): Cached? = entries[key]
+
+    @Synchronized
+    fun put(key: Key, text: String?) {
+        entries[key] = Cached(text)
+    }
+
+    /* Drops the texts of the tasks in `changes` */
+    @Synchronized
+    fun invalidate(changes: TaskChanges) {
+        if (changes.reloaded) {
+            entries.clear()
+        } else if (!changes.isEmpty) {
+            entries.keys.removeAll { changes.affects(it.taskId) }
+        }
+    }
+
+    @Synchronized
+    fun clear() {
+        entries.clear()
+    }
+
+    companion object {
+        const val MAX_ENTRIES = 4096
+    }
+}
@@ -0,0 +1,76 @@
+package nl.mpcjanssen.simpletask.task
+
+import java.util.*
+
+/**
+ * Dates as the number of days since 1970-01-01.
+ *
+ * Date tokens convert their `YYYY-MM-DD` text once when they are created, after that
+ * comparing dates or counting days between them is plain integer arithmetic.
+ * Text which is not a real calendar date (e.g. 2014-02-30) maps to [NONE], the same
+ * dates date4j refuses to parse.
+ */
+object EpochDay {
+    const val NONE = Int.MIN_VALUE
+
+    fun parse(text: String?): Int {
+        if (text == null || text.length != 10 || text[4] != '-' || text[7] != '-') return NONE
+        val year = digits(text, 0, 4)
+        val month = digits(text, 5, 7)
+        val day = digits(text, 8, 10)
+        if (year < 1 || month !in 1..12 || day < 1 || day > daysInMonth(year, month)) return NONE
+        return of(year, month, day)
+    }
+
+    /* Days from civil, see http://howardhinnant.github.io/date_algorithms.html */
+    fun of(year: Int, month: Int, day: Int): Int {
+        val y = if (month <= 2) year - 1 else year
+        val era = (if (y >= 0) y else y - 399) / 400
+        val yoe = y - era * 400
+        val doy = (153 * (if (month > 2) month - 3 else month + 9) + 2) / 5 + day - 1
+        val doe = yoe * 365 + yoe / 4 - yoe / 100 + doy
+        return era * 146097 + doe - 719468
+    }
+
+    fun today(timeZone: TimeZone = TimeZone.getDefault()): Int {
+        val cal = Calendar.getInstance(timeZone)
+        return of(cal.get(Calendar.YEAR), cal.get(Calendar.MONTH) + 1, cal.get(Calendar.DAY_OF_MONTH))
+    }
+
+    /* Returns year * 10000 + month * 100 + day */
+    fun toYearMonthDay(epochDay: Int): Int {
+        val z = epochDay + 719468
+        val era = (if (z >= 0) z else z - 146096) / 146097
+        val doe = z - era * 146097
+        val yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365
+        val doy = doe - (365 * yoe + yoe / 4 - yoe / 100)
+        val mp = (5 * doy + 2) / 153
+        val day = doy - (153 * mp + 2) / 5 + 1
+        val month = if (mp < 10) mp + 3 else mp - 9
+        val year = yoe + era * 400 + if (month <= 2) 1 else 0
+        return year * 10000 + month * 100 + day
+    }
+
+    fun format(epochDay: Int): String {
+        val ymd = toYearMonthDay(epochDay)
+        return String.format(Locale.US, "%04d-%02d-%02d", ymd / 10000, ymd / 100 % 100, ymd % 100)
+    }
+
+    private fun daysInMonth(year: Int, month: Int): Int {
+        return when (month) {
+            2 -> if (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) 29 else 28
+            4, 6, 9, 11 -> 30
+            else -> 31
+        }
+    }
+
+    private fun digits(text: String, from: Int, to: Int): Int {
+        var result = 0
+        for (i in from until to) {
+            val c = text[i]
+            if (c !in '0'..'9') return -1
+            result = result * 10 + (c - '0')
+        }
+        return result
+    }
+}
@@ -0,0 +1,80 @@
+package nl.mpcjanssen.simpletask.task
+
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Interning pool for list and tag names.
+ *
+ * Every distinct name gets one canonical String instance and a small int id which
+ * stays valid for the lifetime of the process. Tokens, tasks, the todo list and the
+ * filters all go through the same pool so names can be compared by id.
+ *
+ * Lookups are lock free, only adding a new name takes the lock.
+ */
+class NamePool {
+    private val ids = ConcurrentHashMap<String, Int>()
+    @Volatile private var names = arrayOfNulls<String>(64)
+    private var count = 0
+
+    val size: Int
+        get() = ids.size
+
+    /* Returns the id for name, adding it to the pool if needed */
+    fun id(name: String): Int {
+        return ids[name] ?: synchronized(this) {
+            ids[name] ?: add(name)
+        }
+    }
+
+    /* Returns the id for name or null if the name was never added */
+    fun idOrNull(name: String): Int? {
+        return ids[name]
+    }
+
+    fun name(id: Int): String {
+        return names[id]!!
+    }
+
+    fun intern(name: String): String {
+        return name(id(name))
+    }
+
+    /* Ids of the names which are in the pool, unknown names are skipped */
+    fun idSet(names: Collection<String>): BitSet {
+        val result = BitSet()
+        names.forEach {
+            idOrNull(it)?.let { id -> result.set(id) }
+        }
+        return result
+    }
+
+    fun names(ids: BitSet): ArrayList<String> {
+        val result = ArrayList<String>(ids.cardinality())
+        var id = ids.nextSetBit(0)
+        while (id >= 0) {
+            result.add(name(id))
+            id = ids.nextSetBit(id + 1)
+        }
+        return result
+    }
+
+    private fun add(name: String): Int {
+        val id = count
+        if (id == names.size) {
+            names = names.copyOf(id * 2)
+        }
+        names[id] = name
+        count = id + 1
+        // Publish the id only after the name is stored
+        ids[name] = id
+        return id
+    }
+
+    companion object {
+        @JvmField
+        val lists = NamePool()
+        @JvmField
+        val tags = NamePool()
+    }
+}
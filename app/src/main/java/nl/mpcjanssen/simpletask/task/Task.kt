@@ -2,17 +2,86 @@ package nl.mpcjanssen.simpletask.task
 
 import nl.mpcjanssen.simpletask.util.addInterval
 import java.util.*
+import java.util.concurrent.atomic.AtomicLong
 import java.util.regex.Pattern
 
-class Task(text: String, defaultPrependedDate: String? = null) {
-
+/**
+ * A single todo.txt line.
+ *
+ * By default the line is kept as a list of tokens. In compact mode only the line and a
+ * packed array with the kind and offset of every token are stored, see [TaskLexer.pack].
+ * Token objects and the derived fields (dates, lists, tags) are then created when
+ * asked for and not kept, which trades speed for memory. The first modification of
+ * the tokens switches the task to the normal representation.
+ *
+ * A lazy task only keeps the raw line until a field is needed. Writing the task back
+ * and text search work on the line, anything else parses it first.
+ *
+ * Tasks in a published [TodoList] are read by several threads and are not changed,
+ * the list changes a [copy] and replaces the task with it.
+ */
+class Task(text: String, defaultPrependedDate: String? = null, compact: Boolean = false, lazy: Boolean = false) {
+
+    // Derived fields, built on first access after a parse or mutation
+    @Volatile
+    private var cachedFields: Fields? = null
+
+    // Changes on every change of the task, lets caches of values derived from the
+    // task (e.g. Lua callback results) detect that they are stale. Unique across all
+    // tasks, so a task that replaces another one with the same id never has its version
+    @Volatile
+    var version = nextVersion()
+        private set
+
+    private var expandedTokens: ArrayList<TToken>? = null
+    private var compactLine: String? = null
+    private var compactTokens: IntArray? = null
+
+    // Raw line of a lazy task which has not been parsed yet
+    @Volatile
+    private var lazyLine: String? = null
+    private val lazyCompact = compact
+
+    /* In compact mode this returns a new list on every call,
+    ** changes to that list are not reflected in the task.
+     */
     var tokens: ArrayList<TToken>
+        get() {
+            ensureParsed()
+            return expandedTokens ?: TaskLexer.unpack(compactLine!!, compactTokens!!)
+        }
+        set(value) {
+            expandedTokens = value
+            compactLine = null
+            compactTokens = null
+            lazyLine = null
+            invalidateFields()
+        }
+
+    // The tokens for modification, leaves compact mode
+    private val mutableTokens: ArrayList<TToken>
+        get() = expandedTokens ?: tokens.also { tokens = it }
+
+    val isCompact: Boolean
+        get() = expandedTokens == null && lazyLine == null
+
+    val isLazy: Boolean
+        get() = lazyLine != null
 
     init {
-        tokens = parse(text)
+        if (lazy && defaultPrependedDate == null) {
+            lazyLine = text
+        } else if (compact) {
+            setCompact(text)
+        } else {
+            expandedTokens = parse(text)
+        }
         defaultPrependedDate?.let {
             if (createDate == null) {
                 createDate = defaultPrependedDate
+                if (compact) {
+                    setCompact(this.text)
+                }
             }
         }
     }
@@ -20,18 +89,72 @@ class Task(text: String, defaultPrependedDate: String? = null) {
     constructor (text: String) : this(text, null)
 
     fun update(rawText: String) {
-        tokens = parse(rawText)
+        if (isLazy) {
+            lazyLine = rawText
+            invalidateFields()
+        } else if (isCompact) {
+            setCompact(rawText)
+        } else {
+            tokens = parse(rawText)
+        }
+    }
+
+    private fun setCompact(rawText: String) {
+        val (line, packed) = TaskLexer.pack(rawText)
+        compactLine = line
+        compactTokens = packed
+        expandedTokens = null
+        lazyLine = null
+        invalidateFields()
+    }
+
+    /* Parses the line of a lazy task, does nothing for other tasks.
+    ** Safe to call from any thread.
+     */
+    fun ensureParsed() {
+        if (lazyLine == null) return
+        synchronized(this) {
+            val line = lazyLine ?: return
+            if (lazyCompact) {
+                val (normalized, packed) = TaskLexer.pack(line)
+                compactLine = normalized
+                compactTokens = packed
+            } else {
+                expandedTokens = parse(line)
+            }
+            // Publishes the parsed state to other threads
+            lazyLine = null
+        }
+    }
+
+    // Not kept in compact mode, the fields take more memory than the packed tokens.
+    // Only a withFieldCache pass keeps them until it ends.
+    private val fields: Fields
+        get() {
+            cachedFields?.let { return it }
+            val pass = passFields.get()
+            val version = version
+            pass?.get(this)?.takeIf { it.version == version }?.let { return it }
+            return Fields(tokens, version).also {
+                if (!isCompact) cachedFields = it else pass?.put(this, it)
+            }
+        }
+
+    private fun invalidateFields() {
+        cachedFields = null
+        version = nextVersion()
     }
 
     private inline fun <reified T> getFirstToken(): T? {
-        tokens.filterIsInstance<T>().forEach {
-            return it
+        tokens.forEach {
+            if (it is T) return it
         }
         return null
     }
 
     private inline fun <reified T : TToken> upsertToken(newToken: T) {
 
+        val tokens = mutableTokens
         if (getFirstToken<T>() == null) {
             tokens.add(newToken)
         } else {
@@ -39,14 +162,48 @@ class Task(text: String, defaultPrependedDate: String? = null) {
                 if (item is T) tokens[idx] = newToken
             }
         }
+        invalidateFields()
+    }
+
+    private fun removeTokens(body: (TToken) -> Boolean) {
+        mutableTokens.removeWhen(body)
+        invalidateFields()
+    }
+
+    // Random UUID, kept as two longs instead of a 36 character string
+    private var idMostSignificant: Long
+    private var idLeastSignificant: Long
 
+    init {
+        val uuid = UUID.randomUUID()
+        idMostSignificant = uuid.mostSignificantBits
+        idLeastSignificant = uuid.leastSignificantBits
     }
 
-    var id: String = UUID.randomUUID().toString()
+    var id: String
+        get() = UUID(idMostSignificant, idLeastSignificant).toString()
+        set(value) {
+            val uuid = UUID.fromString(value)
+            idMostSignificant = uuid.mostSignificantBits
+            idLeastSignificant = uuid.leastSignificantBits
+            version = nextVersion()
+        }
+
+    // The id as UUID, cheaper to hash and compare than the string
+    val idUUID: UUID
+        get() = UUID(idMostSignificant, idLeastSignificant)
+
+    // The id folded into a Long, e.g. for stable ids in the task list
+    val stableId: Long
+        get() = idMostSignificant xor idLeastSignificant
 
     val text: String
         get() {
-            return tokens.joinToString(" ") { it.text }
+            lazyLine?.let {
+                if (TaskLexer.isNormalized(it)) return it
+            }
+            ensureParsed()
+            return compactLine ?: tokens.joinToString(" ") { it.text }
         }
 
     val extensions: List<Pair<String, String>>
@@ -58,17 +215,31 @@ class Task(text: String, defaultPrependedDate: String? = null) {
         }
 
     val completionDate: String?
-        get() = getFirstToken<CompletedDateToken>()?.value
+        get() = fields.completionDate
+
+    /* The dates as days since 1970-01-01, EpochDay.NONE if missing or not a valid date */
+    val completionDay: Int
+        get() = fields.completionDay
+
+    val createDay: Int
+        get() = fields.createDay
+
+    val dueDay: Int
+        get() = fields.dueDay
+
+    val thresholdDay: Int
+        get() = fields.thresholdDay
 
     var uuid: String?
-    get () = getFirstToken<UUIDToken>()?.valueStr
+    get () = fields.uuid
     set (uuid) {
         uuid?.let { upsertToken(UUIDToken(it)) }
     }
 
     var createDate: String?
-        get() = getFirstToken<CreateDateToken>()?.value
+        get() = fields.createDate
         set(newDate) {
+            val tokens = mutableTokens
             val temp = ArrayList<TToken>()
             if (tokens.isNotEmpty() && (tokens.first() is CompletedToken)) {
                 temp.add(tokens[0])
@@ -89,63 +260,58 @@ class Task(text: String, defaultPrependedDate: String? = null) {
                 temp.add(CreateDateToken(newDate))
             }
             temp.addAll(tokens)
-            tokens = temp
+            this.tokens = temp
         }
 
     var dueDate: String?
-        get() = getFirstToken<DueDateToken>()?.valueStr
+        get() = fields.dueDate
         set(dateStr) {
             if (dateStr.isNullOrEmpty()) {
-                tokens.removeWhen { it is DueDateToken }
+                removeTokens { it is DueDateToken }
             } else {
                 upsertToken(DueDateToken(dateStr))
             }
         }
 
     var thresholdDate: String?
-        get() = getFirstToken<ThresholdDateToken>()?.valueStr
+        get() = fields.thresholdDate
         set(dateStr) {
             if (dateStr.isNullOrEmpty()) {
-                tokens.removeWhen { it is ThresholdDateToken }
+                removeTokens { it is ThresholdDateToken }
             } else {
                 upsertToken(ThresholdDateToken(dateStr))
             }
         }
 
     var priority: Priority
-        get() = getFirstToken<PriorityToken>()?.value ?: Priority.NONE
+        get() = fields.priority
         set(prio) {
             when {
-                prio == Priority.NONE -> tokens.removeWhen { it is PriorityToken }
+                prio == Priority.NONE -> removeTokens { it is PriorityToken }
                 tokens.any { it is PriorityToken } -> upsertToken(PriorityToken(prio.fileFormat))
-                else -> tokens.add(0,PriorityToken(prio.fileFormat))
+                else -> {
+                    mutableTokens.add(0, PriorityToken(prio.fileFormat))
+                    invalidateFields()
+                }
             }
         }
 
     val recurrencePattern: String?
-        get() = getFirstToken<RecurrenceToken>()?.valueStr
+        get() = fields.recurrencePattern
 
     val tags: SortedSet<String>?
-        get() {
-            tokens.filterIsInstance<TagToken>().run {
-                return if (size > 0) {
-                    map { it.value }.toSortedSet()
-                } else {
-                    null
-                }
-            }
-        }
+        get() = fields.tags
 
     val lists: SortedSet<String>?
-        get() {
-            tokens.filterIsInstance<ListToken>().run {
-                return if (size > 0) {
-                    map { it.value }.toSortedSet()
-                } else {
-                    null
-                }
-            }
-        }
+        get() = fields.lists
+
+    /* Ids in NamePool.tags, null if the task has no tags. Must not be modified. */
+    val tagIds: BitSet?
+        get() = fields.tagIds
+
+    /* Ids in NamePool.lists, null if the task is on no lists. Must not be modified. */
+    val listIds: BitSet?
+        get() = fields.listIds
 
     val links: Set<String>
         get() {
@@ -161,24 +327,41 @@ class Task(text: String, defaultPrependedDate: String? = null) {
             return tokens.asSequence().filter { it is MailToken }.map { it.text }.toSet()
         }
     var selected: Boolean = false
-    val alphaParts: String = showParts { it.isAlpha() }
+
+    /* A new task with the same line, id and selection, which can be changed */
+    fun copy(): Task {
+        val copy = Task(text, compact = isCompact || (isLazy && lazyCompact))
+        copy.idMostSignificant = idMostSignificant
+        copy.idLeastSignificant = idLeastSignificant
+        copy.selected = selected
+        return copy
+    }
+
+    val alphaParts: String
+        get() {
+            val current = fields
+            return current.alphaParts ?: showParts { it.isAlpha() }.also { current.alphaParts = it }
+        }
 
     fun removeTag(tag: String) {
-        tokens.removeWhen {
-            ((it is TagToken) && it.value == tag)
+        val id = NamePool.tags.idOrNull(tag) ?: return
+        removeTokens {
+            ((it is TagToken) && it.id == id)
         }
     }
 
     fun removeList(list: String) {
-        tokens.removeWhen{
-            ((it is ListToken) && (it.value == list))
+        val id = NamePool.lists.idOrNull(list) ?: return
+        removeTokens {
+            ((it is ListToken) && (it.id == id))
         }
     }
 
     fun markComplete(dateStr: String): Task? {
         if (!this.isCompleted()) {
             val textWithoutCompletedInfo = text
-            tokens.addAll(0, listOf(CompletedToken(true), CompletedDateToken(dateStr)))
+            mutableTokens.addAll(0, listOf(CompletedToken(true), CompletedDateToken(dateStr)))
+            invalidateFields()
             val pattern = recurrencePattern
             if (pattern != null) {
                 var deferFromDate = ""
@@ -203,7 +386,7 @@ class Task(text: String, defaultPrependedDate: String? = null) {
     }
 
     fun markIncomplete() {
-        tokens.removeWhen {
+        removeTokens {
             when (it) {
                 is CompletedDateToken -> true
                 is CompletedToken -> true
@@ -213,7 +396,7 @@ class Task(text: String, defaultPrependedDate: String? = null) {
     }
 
     private fun deferDate(deferString: String, deferFromDate: String?) : String? {
-        if (MATCH_SINGLE_DATE.reset(deferString).matches()) {
+        if (TaskLexer.isDate(deferString)) {
             return deferString
         }
         if (deferString == "") {
@@ -250,19 +433,36 @@ class Task(text: String, defaultPrependedDate: String? = null) {
     }
 
     fun inFuture(today: String, createIsThreshold: Boolean): Boolean {
-        val date = thresholdDate ?: if (createIsThreshold) createDate else null
-        date?.let {
-            return date > today
+        return inFuture(EpochDay.parse(today), createIsThreshold)
+    }
+
+    fun inFuture(today: Int, createIsThreshold: Boolean): Boolean {
+        val current = fields
+        val (date, day) = when {
+            current.thresholdDate != null -> Pair(current.thresholdDate, current.thresholdDay)
+            createIsThreshold -> Pair(current.createDate, current.createDay)
+            else -> return false
+        }
+        return when {
+            date == null -> false
+            // Dates which aren't in the calendar (e.g. 2020-02-30) compare as text like before
+            day == EpochDay.NONE -> date > EpochDay.format(today)
+            else -> day > today
         }
-        return false
     }
 
     fun isHidden(): Boolean {
-        return getFirstToken<HiddenToken>()?.value ?: false
+        return fields.hidden
+    }
+
+    /* True if the line has no text besides spaces, without building the text */
+    fun isBlank(): Boolean {
+        lazyLine?.let { line -> return line.all { it <= ' ' } }
+        return fields.blank
     }
 
     fun isCompleted(): Boolean {
-        return getFirstToken<CompletedToken>() != null
+        return fields.completed
     }
 
     fun showParts(filter: (TToken) -> Boolean): String {
@@ -323,159 +523,111 @@ class Task(text: String, defaultPrependedDate: String? = null) {
     }
 
     private fun appendToken(token: TToken, trimWhiteSpace: Boolean = true) {
+        val tokens = mutableTokens
         while (trimWhiteSpace && tokens.isNotEmpty() && tokens.last() is WhiteSpaceToken) {
             tokens.removeLast()
         }
         tokens.add(token)
+        invalidateFields()
     }
 
-    companion object {
-        var TAG = "Task"
-        const val DATE_FORMAT = "YYYY-MM-DD"
-        private val MATCH_LIST = Pattern.compile("@(\\S+)").matcher("")
-        private val MATCH_TAG = Pattern.compile("\\+(\\S+)").matcher("")
-        private val MATCH_HIDDEN = Pattern.compile("[Hh]:([01])").matcher("")
-        private val MATCH_UUID = Pattern
-                .compile("[Uu][Uu][Ii][Dd]:([A-Fa-f0-9]{8}-[A-Fa-f0-9]{4}-[A-Fa-f0-9]{4}-[A-Fa-f0-9]{4}-[A-Fa-f0-9]{12})")
-                .matcher("")
-        private val MATCH_DUE = Pattern.compile("[Dd][Uu][Ee]:(\\d{4}-\\d{2}-\\d{2})").matcher("")
-        private val MATCH_THRESHOLD = Pattern.compile("[Tt]:(\\d{4}-\\d{2}-\\d{2})").matcher("")
-        private val MATCH_RECURRENCE = Pattern.compile("[Rr][Ee][Cc]:((\\+?)\\d*[dDwWmMyYbB])").matcher("")
-        private val MATCH_EXT = Pattern.compile("(.+):(.+)").matcher("")
-        private val MATCH_PRIORITY = Regex("\\(([A-Z])\\)")
-        private val MATCH_SINGLE_DATE = Pattern.compile("\\d{4}-\\d{2}-\\d{2}").matcher("")
-        private val MATCH_PHONE_NUMBER = Pattern.compile("[+]?[0-9,#()-]{4,}").matcher("")
-        private val MATCH_URI = Pattern.compile("[a-z]+://(\\S+)").matcher("")
-        private val MATCH_MAIL = Pattern.compile("[a-zA-Z0-9\\+\\._%\\-]{1,256}" + "@"
-                + "[a-zA-Z0-9][a-zA-Z0-9\\-]{0,64}" + "(" + "\\."
-                + "[a-zA-Z0-9][a-zA-Z0-9\\-]{0,25}" + ")+").matcher("")
-
-//        fun parse(text: String): ArrayList<TToken> {
-//            val tokens = ArrayList<TToken>()
-//            tokens.add(TextToken(text))
-//            return tokens
-//        }
-
-        fun parse(text: String): ArrayList<TToken> {
-            synchronized(this) {
-                var lexemes = text.lex()
-                val tokens = ArrayList<TToken>()
-
-                if (lexemes.take(1) == listOf("x")) {
-                    tokens.add(CompletedToken(true))
-                    lexemes = lexemes.drop(1)
-                    var nextToken = lexemes.getOrElse(0) { "" }
-                    MATCH_SINGLE_DATE.reset(nextToken).apply {
-                        if (matches()) {
-                            tokens.add(CompletedDateToken(lexemes.first()))
-                            lexemes = lexemes.drop(1)
-                            nextToken = lexemes.getOrElse(0) { "" }
-                            MATCH_SINGLE_DATE.reset(nextToken).apply {
-                                if (matches()) {
-                                    tokens.add(CreateDateToken(lexemes.first()))
-                                    lexemes = lexemes.drop(1)
-                                }
-                            }
-                        }
-                    }
-                }
-
-                var nextToken = lexemes.getOrElse(0) { "" }
-                MATCH_PRIORITY.matchEntire(nextToken)?.let {
-                    tokens.add(PriorityToken(nextToken))
-                    lexemes = lexemes.drop(1)
-                }
-
-                nextToken = lexemes.getOrElse(0) { "" }
-                MATCH_SINGLE_DATE.reset(nextToken).apply {
-                    if (matches()) {
-                        tokens.add(CreateDateToken(lexemes.first()))
-                        lexemes = lexemes.drop(1)
-                    }
-                }
-
-                lexemes.forEach { lexeme ->
-                    MATCH_LIST.reset(lexeme).apply {
-                        if (matches()) {
-                            tokens.add(ListToken(lexeme))
-                            return@forEach
-                        }
+    /* Values derived from the tokens, collected in a single scan.
+    ** Replaced as a whole whenever the tokens change.
+     */
+    private class Fields(tokens: List<TToken>, val version: Long) {
+        var priority = Priority.NONE
+        var completed = false
+        var hidden = false
+        var completionDate: String? = null
+        var createDate: String? = null
+        var dueDate: String? = null
+        var thresholdDate: String? = null
+        var completionDay = EpochDay.NONE
+        var createDay = EpochDay.NONE
+        var dueDay = EpochDay.NONE
+        var thresholdDay = EpochDay.NONE
+        var recurrencePattern: String? = null
+        var uuid: String? = null
+        var lists: SortedSet<String>? = null
+        var tags: SortedSet<String>? = null
+        var listIds: BitSet? = null
+        var tagIds: BitSet? = null
+        var alphaParts: String? = null
+        // True if the text is empty or only has spaces and control characters
+        var blank = true
+
+        init {
+            var hasPriority = false
+            var hasHidden = false
+            var foundLists: BitSet? = null
+            var foundTags: BitSet? = null
+            for (token in tokens) {
+                if (blank && token.text.any { it > ' ' }) blank = false
+                when (token) {
+                    is CompletedToken -> completed = true
+                    is PriorityToken -> if (!hasPriority) {
+                        hasPriority = true
+                        priority = token.value
                     }
-                    MATCH_TAG.reset(lexeme).apply {
-                        if (matches()) {
-                            tokens.add(TagToken(lexeme))
-                            return@forEach
-                        }
+                    is HiddenToken -> if (!hasHidden) {
+                        hasHidden = true
+                        hidden = token.value
                     }
-                    MATCH_HIDDEN.reset(lexeme).apply {
-                        if (matches()) {
-                            group(1)?.let { tokens.add(HiddenToken(it)) }
-                            return@forEach
-                        }
+                    is CompletedDateToken -> if (completionDate == null) {
+                        completionDate = token.value
+                        completionDay = token.epochDay
                     }
-                    // Match phone numbers before tags to support +31.....
-                    // This will make tags which can also be interpreted as phone numbers not possible
-                    MATCH_PHONE_NUMBER.reset(lexeme).apply {
-                        if (matches()) {
-                            tokens.add(PhoneToken(lexeme))
-                            return@forEach
-                        }
+                    is CreateDateToken -> if (createDate == null) {
+                        createDate = token.value
+                        createDay = token.epochDay
                     }
-
-                    MATCH_DUE.reset(lexeme).apply {
-                        if (matches()) {
-                            group(1)?.let { tokens.add(DueDateToken(it)) }
-                            return@forEach
-                        }
+                    is DueDateToken -> if (dueDate == null) {
+                        dueDate = token.valueStr
+                        dueDay = token.epochDay
                     }
-                    MATCH_THRESHOLD.reset(lexeme).apply {
-                        if (matches()) {
-                            group(1)?.let { tokens.add(ThresholdDateToken(it)) }
-                            return@forEach
-                        }
-                    }
-                    MATCH_RECURRENCE.reset(lexeme).apply {
-                        if (matches()) {
-                            group(1)?.let { tokens.add(RecurrenceToken(it)) }
-                            return@forEach
-                        }
-                    }
-                    MATCH_UUID.reset(lexeme).apply {
-                        if (matches()) {
-                            group(1)?.let { tokens.add(UUIDToken(it)) }
-                            return@forEach
-                        }
-                    }
-                    MATCH_URI.reset(lexeme).apply {
-                        if (matches()) {
-                            tokens.add(LinkToken(lexeme))
-                            return@forEach
-                        }
-                    }
-                    MATCH_MAIL.reset(lexeme).apply {
-                        if (matches()) {
-                            tokens.add(MailToken(lexeme))
-                            return@forEach
-                        }
-                    }
-                    MATCH_EXT.reset(lexeme).apply {
-                        if (matches()) {
-                            val extName = group(1)
-                            val extValue = group(2)
-                            if (extName!=null && extValue != null) {
-                                tokens.add(ExtToken(extName, extValue))
-                            }
-                            return@forEach
-                        }
-                    }
-                    if (lexeme.isBlank()) {
-                        tokens.add(WhiteSpaceToken(lexeme))
-                    } else {
-                        tokens.add(TextToken(lexeme))
+                    is ThresholdDateToken -> if (thresholdDate == null) {
+                        thresholdDate = token.valueStr
+                        thresholdDay = token.epochDay
                     }
+                    is RecurrenceToken -> if (recurrencePattern == null) recurrencePattern = token.valueStr
+                    is UUIDToken -> if (uuid == null) uuid = token.valueStr
+                    is ListToken -> (foundLists ?: BitSet().also { foundLists = it }).set(token.id)
+                    is TagToken -> (foundTags ?: BitSet().also { foundTags = it }).set(token.id)
                 }
-                return tokens
             }
+            listIds = foundLists
+            tagIds = foundTags
+            lists = foundLists?.let { Collections.unmodifiableSortedSet(TreeSet(NamePool.lists.names(it))) }
+            tags = foundTags?.let { Collections.unmodifiableSortedSet(TreeSet(NamePool.tags.names(it))) }
+        }
+    }
+
+    companion object {
+        var TAG = "Task"
+        const val DATE_FORMAT = "YYYY-MM-DD"
+
+        private val versions = AtomicLong()
+
+        private fun nextVersion() = versions.incrementAndGet()
+
+        // Fields of compact tasks built in the running withFieldCache pass of a thread
+        private val passFields = ThreadLocal<IdentityHashMap<Task, Fields>>()
+
+        /* Keeps the fields of compact tasks while `block` runs on this thread, so a sort
+        ** and filter pass builds them once per task instead of for every field it reads.
+         */
+        fun <T> withFieldCache(block: () -> T): T {
+            if (passFields.get() != null) return block()
+            passFields.set(IdentityHashMap())
+            try {
+                return block()
+            } finally {
+                passFields.remove()
+            }
+        }
+
+        fun parse(text: String): ArrayList<TToken> {
+            return TaskLexer.parse(text)
         }
     }
 }
@@ -499,14 +651,16 @@ data class PriorityToken(override val text: String) : TToken {
 }
 
 data class ListToken(override val text: String) : TToken {
+    val id = NamePool.lists.id(text.substring(1))
     override val value: String
-        get() = text.substring(1)
+        get() = NamePool.lists.name(id)
 
 }
 
 data class TagToken(override val text: String) : TToken {
+    val id = NamePool.tags.id(text.substring(1))
     override val value: String
-        get() = text.substring(1)
+        get() = NamePool.tags.name(id)
 
 }
 
@@ -516,8 +670,14 @@ interface StringValueToken : TToken {
         get () = text
 }
 
-data class CreateDateToken(override val text: String) : StringValueToken
-data class CompletedDateToken(override val text: String) : StringValueToken
+data class CreateDateToken(override val text: String) : StringValueToken {
+    val epochDay = EpochDay.parse(text)
+}
+
+data class CompletedDateToken(override val text: String) : StringValueToken {
+    val epochDay = EpochDay.parse(text)
+}
+
 data class TextToken(override val text: String) : StringValueToken {
     override fun isAlpha(): Boolean {
         return true
@@ -561,10 +721,12 @@ interface KeyValueToken : TToken {
 
 data class DueDateToken(override val valueStr: String) : KeyValueToken {
     override val key = "due"
+    val epochDay = EpochDay.parse(valueStr)
 }
 
 data class ThresholdDateToken(override val valueStr: String) : KeyValueToken {
     override val key = "t"
+    val epochDay = EpochDay.parse(valueStr)
 }
 
 data class RecurrenceToken(override val valueStr: String) : KeyValueToken {
@@ -3,6 +3,7 @@ package nl.mpcjanssen.simpletask.task
 import android.graphics.Color
 import android.graphics.Paint
 import androidx.core.content.ContextCompat
+import androidx.recyclerview.widget.DiffUtil
 import androidx.recyclerview.widget.LinearLayoutManager
 import androidx.recyclerview.widget.RecyclerView
 import android.text.SpannableString
@@ -20,6 +21,8 @@ import nl.mpcjanssen.simpletask.databinding.ListHeaderBinding
 import nl.mpcjanssen.simpletask.databinding.ListItemBinding
 import nl.mpcjanssen.simpletask.util.*
 import java.util.ArrayList
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
 
 class TaskViewHolder(itemView: View, val viewType : Int) : RecyclerView.ViewHolder(itemView)
 
@@ -31,6 +34,23 @@ class TaskAdapter(val completeAction: (Task) -> Unit,
     lateinit var query: Query
     val tag = "TaskAdapter"
     var textSize: Float = 14.0F
+    // The onDisplay texts of the rows around the shown rows are computed in the background
+    private val prefillExecutor = Executors.newSingleThreadExecutor { runnable ->
+        Thread(runnable, "$tag prefill").apply { isDaemon = true }
+    }
+    private var hasDisplayCallback = false
+    private var prefilledRows = IntRange.EMPTY
+    // Rows of visibleLines whose onDisplay text missed the cache and is being computed
+    private val missedRows = HashSet<Int>()
+    // Only used on the main thread
+    private val lineIds = LineIds()
+    // What the rows show besides the tasks, see `rowLook`
+    private var shownLook: List<Any?>? = null
+
+    init {
+        setHasStableIds(true)
+    }
+
     override fun getItemCount(): Int {
         return visibleLines.size + 1
     }
@@ -79,6 +99,7 @@ class TaskAdapter(val completeAction: (Task) -> Unit,
         val binding = ListItemBinding.bind(holder.itemView)
         val line = visibleLines[position]
         val task = line.task ?: return
+        prefillAround(position)
         val view = holder.itemView
         val taskText = binding.tasktext
         val taskAge = binding.taskage
@@ -108,7 +129,7 @@ class TaskAdapter(val completeAction: (Task) -> Unit,
                 else -> true
             }
         }
-        val txt = Interpreter.onDisplayCallback(query.luaModule, task) ?: task.showParts(tokensToShowFilter)
+        val txt = cachedDisplayText(task, position) ?: task.showParts(tokensToShowFilter)
         val ss = SpannableString(txt)
 
         task.lists?.mapTo(ArrayList()) { "@$it" }?.let { setColor(ss, Color.GRAY, it) }
@@ -196,28 +217,76 @@ class TaskAdapter(val completeAction: (Task) -> Unit,
         }
     }
 
+    // Replaced instead of changed, a refresh compares it with the new lines in the background
+    @Volatile
     internal var visibleLines = ArrayList<VisibleLine>()
 
-    internal fun setFilteredTasks(caller: Simpletask, newQuery: Query) {
-        textSize = TodoApplication.config.tasklistTextSize
-        Log.i(tag, "Text size = $textSize")
-        query = newQuery
-
-        caller.runOnUiThread {
-            caller.showListViewProgress(true)
-        }
-        Log.i(tag, "setFilteredTasks called: ${TodoApplication.todoList}")
-        val (visibleTasks, total) = TodoApplication.todoList.getSortedTasks(newQuery, TodoApplication.config.sortCaseSensitive)
-        countTotalTasks = total
-        countVisibleTasks = visibleTasks.size
+    private class Refreshed(val query: Query, val textSize: Float, val look: List<Any?>,
+                            val oldLines: List<VisibleLine>, val lines: ArrayList<VisibleLine>, val diff: DiffUtil.DiffResult?,
+                            val total: Int, val visible: Int, val hasDisplayCallback: Boolean, val prefilledRows: IntRange)
 
-        val newVisibleLines = ArrayList<VisibleLine>()
+    // If this changes all rows are bound again
+    private fun rowLook(query: Query, textSize: Float): List<Any?> {
+        return listOf(textSize, query.luaModule, query.hideLists, query.hideTags, query.hideCreateDate,
+                query.useScript, query.script)
+    }
 
-        newVisibleLines.addAll(addHeaderLines(visibleTasks, newQuery, getString(R.string.no_header)))
+    // Filtering, sorting and grouping run in the background, only the latest refresh is shown
+    private val refreshes = RefreshPipeline(tag) { publish -> runOnMainThread(Runnable { publish() }) }
 
+    /* Shows the tasks of `newQuery` and calls `afterOnUi` on the main thread when they are shown.
+    ** A newer call cancels the ones that didn't finish.
+     */
+    internal fun setFilteredTasks(caller: Simpletask, newQuery: Query, afterOnUi: (() -> Unit)? = null) {
         caller.runOnUiThread {
+            caller.showListViewProgress(true)
+        }
+        refreshes.submit({ refresh ->
+            val newTextSize = TodoApplication.config.tasklistTextSize
+            Log.i(tag, "Text size = $newTextSize")
+            Log.i(tag, "setFilteredTasks called: ${TodoApplication.todoList}")
+            // One Lua interpreter for the whole refresh
+            Interpreter.leased {
+                val (visibleTasks, total) = TodoApplication.todoList.getSortedTasks(newQuery, TodoApplication.config.sortCaseSensitive, refresh)
+                refresh.checkCancelled()
+                val newVisibleLines = ArrayList<VisibleLine>()
+                var headerLines = addHeaderLines(visibleTasks, newQuery, getString(R.string.no_header))
+                if (Interpreter.budgetExceeded) {
+                    // The scripts were aborted part way, group all tasks as if there were none
+                    headerLines = addHeaderLines(visibleTasks, newQuery, getString(R.string.no_header), withLua = false)
+                }
+                newVisibleLines.addAll(headerLines)
+                refresh.checkCancelled()
+                // Only the changed rows are updated when the lines are shown
+                val oldLines = visibleLines
+                val diff = VisibleLineDiff.calculate(oldLines, newVisibleLines)
+                refresh.checkCancelled()
+                val display = Interpreter.hasCallback(newQuery.luaModule, Interpreter.ON_DISPLAY_NAME)
+                // The rows shown first, before the list is shown
+                val firstRows = if (display) {
+                    prefillRows(newVisibleLines, newQuery.luaModule, TodoApplication.config.lastScrollPosition.coerceAtLeast(0), refresh)
+                } else {
+                    IntRange.EMPTY
+                }
+                Refreshed(newQuery, newTextSize, rowLook(newQuery, newTextSize), oldLines, newVisibleLines, diff,
+                        total, visibleTasks.size, display, firstRows)
+            }
+        }, failed = {
+            // Keep showing the old lines
+            caller.showListViewProgress(false)
+            afterOnUi?.invoke()
+        }) { refreshed ->
             // Replace the array in the main thread to prevent OutOfIndex exceptions
-            visibleLines = newVisibleLines
+            query = refreshed.query
+            textSize = refreshed.textSize
+            val diff = refreshed.diff?.takeIf { visibleLines === refreshed.oldLines && shownLook == refreshed.look }
+            visibleLines = refreshed.lines
+            shownLook = refreshed.look
+            countTotalTasks = refreshed.total
+            countVisibleTasks = refreshed.visible
+            hasDisplayCallback = refreshed.hasDisplayCallback
+            prefilledRows = refreshed.prefilledRows
+            missedRows.clear()
             caller.showListViewProgress(false)
             if (TodoApplication.config.lastScrollPosition != -1) {
                 val manager = caller.listView.layoutManager as LinearLayoutManager?
@@ -226,10 +295,75 @@ class TaskAdapter(val completeAction: (Task) -> Unit,
                 Log.i(tag, "Restoring scroll offset $position, $offset")
                 manager?.scrollToPositionWithOffset(position, offset)
             }
-            notifyDataSetChanged()
+            if (diff != null) {
+                diff.dispatchUpdatesTo(this)
+            } else {
+                notifyDataSetChanged()
+            }
+            afterOnUi?.invoke()
+        }
+    }
+
+
+    // Called on the main thread when a row is bound
+    private fun prefillAround(position: Int) {
+        if (!hasDisplayCallback) return
+        if (position - PREFILL_ROWS / 2 >= prefilledRows.first && position + PREFILL_ROWS / 2 <= prefilledRows.last) return
+        val lines = visibleLines
+        val module = query.luaModule
+        prefilledRows = rowsAround(lines, position)
+        try {
+            prefillExecutor.execute {
+                Interpreter.leased { prefillRows(lines, module, position) }
+            }
+        } catch (e: RejectedExecutionException) {
+            Log.w(tag, "Prefill after shutdown ignored")
+        }
+    }
+
+    // Binding never runs Lua, a miss shows the plain text until the prefill thread rebinds the row
+    private fun cachedDisplayText(task: Task, position: Int): String? {
+        if (!hasDisplayCallback) return null
+        val cached = Interpreter.cachedDisplayText(query.luaModule, task)
+        if (cached == null) fillMissed(position)
+        return cached?.text
+    }
+
+    private fun fillMissed(position: Int) {
+        if (!missedRows.add(position)) return
+        val lines = visibleLines
+        val module = query.luaModule
+        try {
+            prefillExecutor.execute {
+                lines[position].task?.let { Interpreter.onDisplayCallback(module, it) }
+                runOnMainThread(Runnable {
+                    if (visibleLines === lines) notifyItemChanged(position)
+                })
+            }
+        } catch (e: RejectedExecutionException) {
+            Log.w(tag, "Prefill after shutdown ignored")
         }
     }
 
+    /* Stops the background threads, call when the activity is destroyed */
+    fun shutdown() {
+        refreshes.shutdown()
+        prefillExecutor.shutdownNow()
+    }
+
+    private fun rowsAround(lines: List<VisibleLine>, position: Int): IntRange {
+        return maxOf(0, position - PREFILL_ROWS) until minOf(lines.size, position + PREFILL_ROWS)
+    }
+
+    /* Computes the onDisplay texts of the rows around `position`, returns the rows */
+    private fun prefillRows(lines: List<VisibleLine>, module: String, position: Int, refresh: RefreshPipeline.Refresh? = null): IntRange {
+        val rows = rowsAround(lines, position)
+        rows.forEach { row ->
+            refresh?.checkCancelled()
+            lines[row].task?.let { Interpreter.onDisplayCallback(module, it) }
+        }
+        return rows
+    }
 
     var countVisibleTasks = 0
     var countTotalTasks = 0
@@ -243,7 +377,10 @@ class TaskAdapter(val completeAction: (Task) -> Unit,
     }
 
     override fun getItemId(position: Int): Long {
-        return position.toLong()
+        if (position == visibleLines.size) {
+            return FOOTER_ID
+        }
+        return lineIds.of(visibleLines[position])
     }
 
     override fun getItemViewType(position: Int): Int {
@@ -317,8 +454,11 @@ class TaskAdapter(val completeAction: (Task) -> Unit,
 
     // Updates the UI, but avoids the red line
     fun visuallyMoveLine(fromVisibleLineIndex: Int, toVisibleLineIndex: Int) {
-        val lineToMove = visibleLines.removeAt(fromVisibleLineIndex)
-        visibleLines.add(toVisibleLineIndex, lineToMove)
+        val lines = ArrayList(visibleLines)
+        val lineToMove = lines.removeAt(fromVisibleLineIndex)
+        lines.add(toVisibleLineIndex, lineToMove)
+        visibleLines = lines
+        missedRows.clear()
 
         notifyItemMoved(fromVisibleLineIndex, toVisibleLineIndex)
     }
@@ -366,17 +506,20 @@ class TaskAdapter(val completeAction: (Task) -> Unit,
 
         // If we're sorting by reverse file order, the meaning of above/below
         // is swapped in the todo.txt file vs in the displayed lines
-        if (isMoveBelow xor !comp.fileOrder) {
-            TodoApplication.todoList.moveBelow(toTask, fromTask)
-        } else {
-            TodoApplication.todoList.moveAbove(toTask, fromTask)
+        TodoApplication.todoList.submit("Move", forceKeepSelection = true) {
+            if (isMoveBelow xor !comp.fileOrder) {
+                TodoApplication.todoList.moveBelow(toTask, fromTask)
+            } else {
+                TodoApplication.todoList.moveAbove(toTask, fromTask)
+            }
         }
+    }
 
-        TodoApplication.todoList.notifyTasklistChanged(
-                TodoApplication.config.todoFile,
-                save = true,
-                refreshMainUI = true,
-                forceKeepSelection = true);
+    companion object {
+        // Rows before and after a shown row with a precomputed onDisplay text
+        private const val PREFILL_ROWS = 50
+        // The empty row at the end
+        private const val FOOTER_ID = Long.MIN_VALUE
     }
 }
 
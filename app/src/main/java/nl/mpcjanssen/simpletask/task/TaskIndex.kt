@@ -0,0 +1,250 @@
+package nl.mpcjanssen.simpletask.task
+
+import java.util.*
+
+/* The tasks `select` picks from the index of a list as it was at one published version,
+** null if the list has moved on. See [TodoList.getSortedTasks].
+ */
+typealias IndexLookup = ((TaskIndex) -> BitSet) -> Set<Task>?
+
+/**
+ * Inverted index of the lists, tags and priorities of the tasks in a [TodoList].
+ *
+ * Every indexed task gets a slot, the index keeps a bitset of slots per list, tag and
+ * priority and one for the tasks without lists or tags (the "-" filter value). Slots
+ * of removed tasks are reused. The list and tag bitsets are indexed by [NamePool] id.
+ *
+ * It also counts the open and total number of tasks per list and tag.
+ *
+ * A task has to be updated in the index after each change of its lists, tags,
+ * priority or completion. All methods are synchronized.
+ */
+class TaskIndex {
+    data class Count(val open: Int, val total: Int)
+
+    private val slots = IdentityHashMap<Task, Int>()
+    private var tasks = arrayOfNulls<Task>(64)
+    private val used = BitSet()
+
+    // What was indexed for each slot, needed to remove a task again
+    private var indexedPriorities = arrayOfNulls<Priority>(64)
+    private var indexedLists = arrayOfNulls<BitSet>(64)
+    private var indexedTags = arrayOfNulls<BitSet>(64)
+    private var indexedCompleted = BooleanArray(64)
+
+    private val byPriority = Array(Priority.values().size) { BitSet() }
+    private val byList = ArrayList<BitSet?>()
+    private val byTag = ArrayList<BitSet?>()
+    private val withoutList = BitSet()
+    private val withoutTag = BitSet()
+    private var listCounts = NameCounts()
+    private var tagCounts = NameCounts()
+
+    @Synchronized
+    fun clear() {
+        slots.clear()
+        used.clear()
+        tasks.fill(null)
+        indexedPriorities.fill(null)
+        indexedLists.fill(null)
+        indexedTags.fill(null)
+        byPriority.forEach { it.clear() }
+        byList.clear()
+        byTag.clear()
+        withoutList.clear()
+        withoutTag.clear()
+        listCounts = NameCounts()
+        tagCounts = NameCounts()
+    }
+
+    @Synchronized
+    fun rebuild(items: Collection<Task>) {
+        clear()
+        items.forEach { add(it) }
+    }
+
+    /* Adds a task or updates its entry if it is already indexed */
+    @Synchronized
+    fun add(task: Task) {
+        val current = slots[task]
+        val slot = if (current != null) {
+            unindex(current)
+            current
+        } else {
+            used.nextClearBit(0).also {
+                ensureCapacity(it + 1)
+                slots[task] = it
+                used.set(it)
+                tasks[it] = task
+            }
+        }
+        val priority = task.priority
+        val lists = task.listIds
+        val tags = task.tagIds
+        val completed = task.isCompleted()
+        indexedPriorities[slot] = priority
+        indexedLists[slot] = lists
+        indexedTags[slot] = tags
+        indexedCompleted[slot] = completed
+        byPriority[priority.ordinal].set(slot)
+        addToBuckets(slot, lists, byList, withoutList)
+        addToBuckets(slot, tags, byTag, withoutTag)
+        listCounts.add(lists, completed, 1)
+        tagCounts.add(tags, completed, 1)
+    }
+
+    @Synchronized
+    fun addAll(items: Collection<Task>) {
+        items.forEach { add(it) }
+    }
+
+    @Synchronized
+    fun remove(task: Task) {
+        val slot = slots.remove(task) ?: return
+        unindex(slot)
+        used.clear(slot)
+        tasks[slot] = null
+    }
+
+    @Synchronized
+    fun removeAll(items: Collection<Task>) {
+        items.forEach { remove(it) }
+    }
+
+    /* Slot of the task or -1 if it is not indexed */
+    @Synchronized
+    fun slot(task: Task): Int = slots[task] ?: -1
+
+    @Synchronized
+    fun task(slot: Int): Task? = tasks.getOrNull(slot)
+
+    /* The tasks in `slots`, compared by identity */
+    @Synchronized
+    fun tasks(slots: BitSet): Set<Task> {
+        val result = Collections.newSetFromMap(IdentityHashMap<Task, Boolean>(slots.cardinality()))
+        var slot = slots.nextSetBit(0)
+        while (slot >= 0) {
+            tasks.getOrNull(slot)?.let { result.add(it) }
+            slot = slots.nextSetBit(slot + 1)
+        }
+        return result
+    }
+
+    /* Slots of all indexed tasks */
+    @Synchronized
+    fun all(): BitSet = used.clone() as BitSet
+
+    @Synchronized
+    fun withPriorities(priorities: Collection<Priority>): BitSet {
+        val result = BitSet()
+        priorities.forEach { result.or(byPriority[it.ordinal]) }
+        return result
+    }
+
+    /* Slots of the tasks on any of the lists, "-" matches the tasks without lists */
+    @Synchronized
+    fun withLists(names: Collection<String>): BitSet {
+        return withNames(names, NamePool.lists, byList, withoutList)
+    }
+
+    /* Slots of the tasks with any of the tags, "-" matches the tasks without tags */
+    @Synchronized
+    fun withTags(names: Collection<String>): BitSet {
+        return withNames(names, NamePool.tags, byTag, withoutTag)
+    }
+
+    /* Number of open and all tasks per list, only lists with tasks are included */
+    @Synchronized
+    fun listCounts(): Map<String, Count> = listCounts.toMap(NamePool.lists)
+
+    /* Number of open and all tasks per tag, only tags with tasks are included */
+    @Synchronized
+    fun tagCounts(): Map<String, Count> = tagCounts.toMap(NamePool.tags)
+
+    private fun withNames(names: Collection<String>, pool: NamePool, buckets: ArrayList<BitSet?>, without: BitSet): BitSet {
+        val result = BitSet()
+        names.forEach {
+            if (it == "-") {
+                result.or(without)
+            } else {
+                pool.idOrNull(it)?.let { id -> buckets.getOrNull(id)?.let { bucket -> result.or(bucket) } }
+            }
+        }
+        return result
+    }
+
+    private fun unindex(slot: Int) {
+        indexedPriorities[slot]?.let { byPriority[it.ordinal].clear(slot) }
+        removeFromBuckets(slot, indexedLists[slot], byList, withoutList)
+        removeFromBuckets(slot, indexedTags[slot], byTag, withoutTag)
+        listCounts.add(indexedLists[slot], indexedCompleted[slot], -1)
+        tagCounts.add(indexedTags[slot], indexedCompleted[slot], -1)
+        indexedPriorities[slot] = null
+        indexedLists[slot] = null
+        indexedTags[slot] = null
+    }
+
+    private fun addToBuckets(slot: Int, ids: BitSet?, buckets: ArrayList<BitSet?>, without: BitSet) {
+        if (ids == null) {
+            without.set(slot)
+            return
+        }
+        var id = ids.nextSetBit(0)
+        while (id >= 0) {
+            while (buckets.size <= id) buckets.add(null)
+            (buckets[id] ?: BitSet().also { buckets[id] = it }).set(slot)
+            id = ids.nextSetBit(id + 1)
+        }
+    }
+
+    private fun removeFromBuckets(slot: Int, ids: BitSet?, buckets: ArrayList<BitSet?>, without: BitSet) {
+        if (ids == null) {
+            without.clear(slot)
+            return
+        }
+        var id = ids.nextSetBit(0)
+        while (id >= 0) {
+            buckets.getOrNull(id)?.clear(slot)
+            id = ids.nextSetBit(id + 1)
+        }
+    }
+
+    private fun ensureCapacity(size: Int) {
+        if (size <= tasks.size) return
+        val newSize = maxOf(size, tasks.size * 2)
+        tasks = tasks.copyOf(newSize)
+        indexedPriorities = indexedPriorities.copyOf(newSize)
+        indexedLists = indexedLists.copyOf(newSize)
+        indexedTags = indexedTags.copyOf(newSize)
+        indexedCompleted = indexedCompleted.copyOf(newSize)
+    }
+
+    // Task counts by NamePool id
+    private class NameCounts {
+        var open = IntArray(0)
+        var total = IntArray(0)
+
+        fun add(ids: BitSet?, completed: Boolean, delta: Int) {
+            if (ids == null) return
+            var id = ids.nextSetBit(0)
+            while (id >= 0) {
+                if (id >= total.size) {
+                    val newSize = maxOf(id + 1, total.size * 2)
+                    open = open.copyOf(newSize)
+                    total = total.copyOf(newSize)
+                }
+                total[id] += delta
+                if (!completed) open[id] += delta
+                id = ids.nextSetBit(id + 1)
+            }
+        }
+
+        fun toMap(pool: NamePool): Map<String, Count> {
+            val result = LinkedHashMap<String, Count>()
+            for (id in total.indices) {
+                if (total[id] > 0) result[pool.name(id)] = Count(open[id], total[id])
+            }
+            return Collections.unmodifiableMap(result)
+        }
+    }
+}
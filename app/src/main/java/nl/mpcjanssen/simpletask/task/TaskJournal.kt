@@ -0,0 +1,129 @@
+package nl.mpcjanssen.simpletask.task
+
+import java.util.*
+
+/* The [Task.version] of a changed task before and after the change, NONE if unknown.
+** Versions are unique across tasks, so they can be compared when the change replaced the task.
+ */
+data class TaskVersions(val before: Long, val after: Long) {
+    companion object {
+        const val NONE = -1L
+    }
+}
+
+/**
+ * The tasks that changed between two versions of a [TodoList], by task id.
+ *
+ * `versions` has the task versions of every changed task. Added tasks have no version
+ * before and removed tasks none after the change.
+ *
+ * If `reloaded` is true the whole list was replaced (e.g. loaded from the todo file)
+ * and consumers should refresh everything, the id sets are empty in that case.
+ */
+class TaskChanges(
+        val fromVersion: Long,
+        val toVersion: Long,
+        val added: Set<String>,
+        val removed: Set<String>,
+        val updated: Set<String>,
+        val versions: Map<String, TaskVersions> = emptyMap(),
+        val reloaded: Boolean = false
+) {
+    val isEmpty: Boolean
+        get() = !reloaded && added.isEmpty() && removed.isEmpty() && updated.isEmpty()
+
+    /* True if the task with `id` was added, removed or updated */
+    fun affects(id: String): Boolean = reloaded || id in added || id in removed || id in updated
+
+    override fun toString(): String {
+        return if (reloaded) {
+            "TaskChanges($fromVersion -> $toVersion, reloaded)"
+        } else {
+            "TaskChanges($fromVersion -> $toVersion, added ${added.size}, removed ${removed.size}, updated ${updated.size})"
+        }
+    }
+}
+
+/**
+ * Records the changes of a [TodoList] while they are applied.
+ *
+ * Changes of one task within one commit are folded: a task that is added and
+ * updated is added, a task that is added and removed again is not reported and a
+ * task that is removed and added again (replaced by an edit) is updated. The version
+ * before is the one when the task was last committed or removed, NONE if the task
+ * wasn't changed since the last reload, the version after the one of the last change.
+ *
+ * Not thread safe, the owner records and commits under its write lock.
+ */
+class TaskJournal {
+    private val added = LinkedHashSet<String>()
+    private val removed = LinkedHashSet<String>()
+    private val updated = LinkedHashSet<String>()
+    private val versions = HashMap<String, TaskVersions>()
+    // The version of every task when it was last committed
+    private val committedVersions = HashMap<String, Long>()
+    private var reloaded = false
+
+    fun added(task: Task) {
+        addedId(task.id)
+        changedVersion(task.id, TaskVersions.NONE, task.version)
+    }
+
+    fun removed(task: Task) {
+        removedId(task.id)
+        changedVersion(task.id, task.version, TaskVersions.NONE)
+    }
+
+    fun updated(task: Task) {
+        updatedId(task.id)
+        changedVersion(task.id, committedVersions[task.id] ?: TaskVersions.NONE, task.version)
+    }
+
+    /* The whole list was replaced */
+    fun reloaded() {
+        reloaded = true
+    }
+
+    /* Changes recorded since the last commit, null if there were none */
+    fun commit(fromVersion: Long, toVersion: Long): TaskChanges? {
+        val changes = if (reloaded) {
+            committedVersions.clear()
+            TaskChanges(fromVersion, toVersion, emptySet(), emptySet(), emptySet(), reloaded = true)
+        } else {
+            val changedVersions = HashMap<String, TaskVersions>()
+            versions.forEach { (id, change) ->
+                if (id in added || id in removed || id in updated) {
+                    changedVersions[id] = change
+                    if (change.after == TaskVersions.NONE) committedVersions.remove(id) else committedVersions[id] = change.after
+                }
+            }
+            TaskChanges(fromVersion, toVersion, LinkedHashSet(added), LinkedHashSet(removed), LinkedHashSet(updated), changedVersions)
+        }
+        added.clear()
+        removed.clear()
+        updated.clear()
+        versions.clear()
+        reloaded = false
+        return changes.takeUnless { it.isEmpty }
+    }
+
+    private fun addedId(id: String) {
+        if (removed.remove(id)) updated.add(id) else added.add(id)
+    }
+
+    private fun removedId(id: String) {
+        if (!added.remove(id)) {
+            updated.remove(id)
+            removed.add(id)
+        }
+    }
+
+    private fun updatedId(id: String) {
+        if (id !in added) updated.add(id)
+    }
+
+    // Keeps the first version before and the last version after
+    private fun changedVersion(id: String, before: Long, after: Long) {
+        versions[id] = TaskVersions(versions[id]?.before ?: before, after)
+    }
+}
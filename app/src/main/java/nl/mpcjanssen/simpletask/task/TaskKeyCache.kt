@@ -0,0 +1,43 @@
+package nl.mpcjanssen.simpletask.task
+
+import java.util.*
+
+/**
+ * Values computed from a task, e.g. the result of a Lua callback, per module.
+ *
+ * A value is computed again when the task changed since it was computed (see
+ * [Task.version]), so the cache stays valid across refreshes of the task list.
+ * Tasks are weakly referenced, tasks removed from the list are dropped by the GC.
+ * A value must not refer to its task, that would keep the task and the value.
+ * Clear a module when the code computing its values changes. All methods are
+ * synchronized.
+ */
+class TaskKeyCache<T> {
+    private class Entry<T>(val version: Long, val value: T)
+
+    private val modules = HashMap<String, WeakHashMap<Task, Entry<T>>>()
+
+    var hits = 0L
+        private set
+    var misses = 0L
+        private set
+
+    @Synchronized
+    fun get(module: String, task: Task, compute: (Task) -> T): T {
+        val entries = modules.getOrPut(module) { WeakHashMap() }
+        val version = task.version
+        val entry = entries[task]
+        if (entry != null && entry.version == version) {
+            hits++
+            return entry.value
+        }
+        misses++
+        return compute(task).also { entries[task] = Entry(version, it) }
+    }
+
+    /* Forgets the values of `module`, of all modules if it is null */
+    @Synchronized
+    fun clear(module: String? = null) {
+        if (module == null) modules.clear() else modules.remove(module)
+    }
+}
@@ -0,0 +1,382 @@
+package nl.mpcjanssen.simpletask.task
+
+/**
+ * Hand written lexer and classifier for todo.txt lines.
+ *
+ * Splits a line on space separators and classifies every lexeme in a single pass.
+ * It keeps no shared state (no cached `Matcher`s), so lines can be parsed on any
+ * number of threads at the same time.
+ *
+ * The produced token list is identical to the one of the original regex based parser:
+ * - `x` [completion date [creation date]]
+ * - `(A)` priority
+ * - creation date
+ * - list, tag, h:, phone number, due:, t:, rec:, uuid:, link, mail, key:value,
+ *   whitespace or text, tried in that order for every remaining lexeme.
+ */
+object TaskLexer {
+
+    // Token kinds, also used in the packed representation
+    const val COMPLETED = 0
+    const val COMPLETION_DATE = 1
+    const val CREATE_DATE = 2
+    const val PRIORITY = 3
+    const val LIST = 4
+    const val TAG = 5
+    const val HIDDEN = 6
+    const val PHONE = 7
+    const val DUE_DATE = 8
+    const val THRESHOLD_DATE = 9
+    const val RECURRENCE = 10
+    const val UUID = 11
+    const val LINK = 12
+    const val MAIL = 13
+    const val EXTENSION = 14
+    const val WHITESPACE = 15
+    const val TEXT = 16
+
+    private const val EXPECT_COMPLETED = 0
+    private const val EXPECT_COMPLETION_DATE = 1
+    private const val EXPECT_COMPLETED_CREATE_DATE = 2
+    private const val EXPECT_PRIORITY = 3
+    private const val EXPECT_CREATE_DATE = 4
+    private const val BODY = 5
+
+    private const val KIND_BITS = 8
+    private const val KIND_MASK = (1 shl KIND_BITS) - 1
+
+    private const val PHONE_CHARS = "0123456789,#()-"
+    private const val RECURRENCE_UNITS = "dDwWmMyYbB"
+    private const val MAX_MAIL_LOCAL_LENGTH = 256
+    private const val MAX_MAIL_FIRST_LABEL_LENGTH = 65
+    private const val MAX_MAIL_LABEL_LENGTH = 26
+
+    fun parse(text: String): ArrayList<TToken> {
+        val tokens = ArrayList<TToken>()
+        scan(text) { kind, from, to ->
+            tokens.add(token(text, kind, from, to))
+        }
+        return tokens
+    }
+
+    /* Lexes `text` into the packed form used by compact tasks.
+    ** Returns the line as it will be written back (separators replaced by a space and
+    ** keys like DUE: lower cased) together with the kind and start offset of every token.
+    ** Offsets are unchanged by the normalization, so tokens can be recreated with [unpack].
+     */
+    fun pack(text: String): Pair<String, IntArray> {
+        var packed = IntArray(16)
+        var count = 0
+        var normalized: CharArray? = null
+        scan(text) { kind, from, to ->
+            if (count == packed.size) {
+                packed = packed.copyOf(count * 2)
+            }
+            packed[count++] = (from shl KIND_BITS) or kind
+            val keyLength = when (kind) {
+                HIDDEN, THRESHOLD_DATE -> 1
+                DUE_DATE, RECURRENCE -> 3
+                UUID -> 4
+                else -> 0
+            }
+            for (i in from until from + keyLength) {
+                if (text[i] in 'A'..'Z') {
+                    (normalized ?: text.toCharArray().also { normalized = it })[i] = text[i] + ('a' - 'A')
+                }
+            }
+            if (to < text.length && text[to] != ' ') {
+                (normalized ?: text.toCharArray().also { normalized = it })[to] = ' '
+            }
+        }
+        val line = normalized?.let { String(it) } ?: text
+        return Pair(line, packed.copyOf(count))
+    }
+
+    /* Returns true if [pack] would return `text` unchanged, without lexing it.
+    ** Can return false for lines which are already normalized.
+     */
+    fun isNormalized(text: String): Boolean {
+        var tokenStart = 0
+        for (i in text.indices) {
+            val c = text[i]
+            if (c == ' ') {
+                tokenStart = i + 1
+            } else if (isSeparator(c)) {
+                return false
+            } else if (c == ':') {
+                val keyLength = i - tokenStart
+                if (keyLength == 1 || keyLength == 3 || keyLength == 4) {
+                    for (k in tokenStart until i) {
+                        if (text[k] in 'A'..'Z') return false
+                    }
+                }
+            }
+        }
+        return true
+    }
+
+    fun unpack(line: String, packed: IntArray): ArrayList<TToken> {
+        val tokens = ArrayList<TToken>(packed.size)
+        for (i in packed.indices) {
+            tokens.add(unpack(line, packed, i))
+        }
+        return tokens
+    }
+
+    fun unpack(line: String, packed: IntArray, index: Int): TToken {
+        return token(line, packedKind(packed, index), packedStart(packed, index), packedEnd(line, packed, index))
+    }
+
+    fun packedKind(packed: IntArray, index: Int) = packed[index] and KIND_MASK
+
+    fun packedStart(packed: IntArray, index: Int) = packed[index] ushr KIND_BITS
+
+    fun packedEnd(line: String, packed: IntArray, index: Int): Int {
+        return if (index + 1 < packed.size) packedStart(packed, index + 1) - 1 else line.length
+    }
+
+    /* Returns true if `text` is a date in the YYYY-MM-DD format.
+    ** Only the shape is checked, 2014-99-99 is accepted.
+     */
+    fun isDate(text: String): Boolean = isDate(text, 0, text.length)
+
+    private inline fun scan(text: String, emit: (kind: Int, from: Int, to: Int) -> Unit) {
+        val length = text.length
+        var state = EXPECT_COMPLETED
+        var start = 0
+        while (start <= length) {
+            var end = start
+            while (end < length && !isSeparator(text[end])) {
+                end++
+            }
+            val classified = classify(text, start, end, state)
+            state = classified ushr KIND_BITS
+            emit(classified and KIND_MASK, start, end)
+            start = end + 1
+        }
+    }
+
+    // Returns the next state and the kind of the lexeme packed in one Int
+    private fun classify(text: String, from: Int, to: Int, state: Int): Int {
+        var current = state
+        if (current == EXPECT_COMPLETED) {
+            if (to - from == 1 && text[from] == 'x') {
+                return (EXPECT_COMPLETION_DATE shl KIND_BITS) or COMPLETED
+            }
+            current = EXPECT_PRIORITY
+        }
+        if (current == EXPECT_COMPLETION_DATE) {
+            if (isDate(text, from, to)) {
+                return (EXPECT_COMPLETED_CREATE_DATE shl KIND_BITS) or COMPLETION_DATE
+            }
+            current = EXPECT_PRIORITY
+        }
+        if (current == EXPECT_COMPLETED_CREATE_DATE) {
+            if (isDate(text, from, to)) {
+                return (EXPECT_PRIORITY shl KIND_BITS) or CREATE_DATE
+            }
+            current = EXPECT_PRIORITY
+        }
+        if (current == EXPECT_PRIORITY) {
+            if (isPriority(text, from, to)) {
+                return (EXPECT_CREATE_DATE shl KIND_BITS) or PRIORITY
+            }
+            current = EXPECT_CREATE_DATE
+        }
+        if (current == EXPECT_CREATE_DATE) {
+            if (isDate(text, from, to)) {
+                return (BODY shl KIND_BITS) or CREATE_DATE
+            }
+        }
+        return (BODY shl KIND_BITS) or classifyBody(text, from, to)
+    }
+
+    private fun classifyBody(text: String, from: Int, to: Int): Int {
+        val length = to - from
+        return when {
+            isPrefixed(text, from, to, '@') -> LIST
+            isPrefixed(text, from, to, '+') -> TAG
+            isHidden(text, from, to) -> HIDDEN
+            isPhoneNumber(text, from, to) -> PHONE
+            length == 14 && hasKey(text, from, "due:") && isDate(text, from + 4, to) -> DUE_DATE
+            length == 12 && (text[from] == 't' || text[from] == 'T') && text[from + 1] == ':' && isDate(text, from + 2, to) ->
+                THRESHOLD_DATE
+            isRecurrence(text, from, to) -> RECURRENCE
+            isUUID(text, from, to) -> UUID
+            isLink(text, from, to) -> LINK
+            isMail(text, from, to) -> MAIL
+            extSeparator(text, from, to) != -1 -> EXTENSION
+            isBlank(text, from, to) -> WHITESPACE
+            else -> TEXT
+        }
+    }
+
+    private fun token(text: String, kind: Int, from: Int, to: Int): TToken {
+        return when (kind) {
+            COMPLETED -> CompletedToken(true)
+            COMPLETION_DATE -> CompletedDateToken(text.substring(from, to))
+            CREATE_DATE -> CreateDateToken(text.substring(from, to))
+            PRIORITY -> PriorityToken(text.substring(from, to))
+            LIST -> ListToken(text.substring(from, to))
+            TAG -> TagToken(text.substring(from, to))
+            HIDDEN -> HiddenToken(text.substring(from + 2, to))
+            PHONE -> PhoneToken(text.substring(from, to))
+            DUE_DATE -> DueDateToken(text.substring(from + 4, to))
+            THRESHOLD_DATE -> ThresholdDateToken(text.substring(from + 2, to))
+            RECURRENCE -> RecurrenceToken(text.substring(from + 4, to))
+            UUID -> UUIDToken(text.substring(from + 5, to))
+            LINK -> LinkToken(text.substring(from, to))
+            MAIL -> MailToken(text.substring(from, to))
+            EXTENSION -> {
+                val separator = extSeparator(text, from, to)
+                ExtToken(text.substring(from, separator), text.substring(separator + 1, to))
+            }
+            WHITESPACE -> WhiteSpaceToken(text.substring(from, to))
+            else -> TextToken(text.substring(from, to))
+        }
+    }
+
+    // Same characters as the `[ \p{Z}]` split pattern
+    private fun isSeparator(c: Char): Boolean {
+        if (c == ' ') return true
+        return when (Character.getType(c).toByte()) {
+            Character.SPACE_SEPARATOR, Character.LINE_SEPARATOR, Character.PARAGRAPH_SEPARATOR -> true
+            else -> false
+        }
+    }
+
+    // Same characters as the regex `\s` class
+    private fun isRegexWhiteSpace(c: Char): Boolean {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\u000C' || c == '\r'
+    }
+
+    // Characters not matched by the regex `.`
+    private fun isLineTerminator(c: Char): Boolean {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029'
+    }
+
+    // ASCII only case insensitive prefix match, like `[Dd][Uu][Ee]:` in a regex
+    private fun hasKey(text: String, from: Int, key: String): Boolean {
+        if (text.length - from < key.length) return false
+        for (i in key.indices) {
+            val c = text[from + i]
+            val k = key[i]
+            if (c != k && c != k.toUpperCase()) return false
+        }
+        return true
+    }
+
+    private fun isDigit(c: Char) = c in '0'..'9'
+
+    private fun isAlphaNumeric(c: Char) = c in 'a'..'z' || c in 'A'..'Z' || c in '0'..'9'
+
+    private fun isHex(c: Char) = c in '0'..'9' || c in 'a'..'f' || c in 'A'..'F'
+
+    private fun isDate(text: String, from: Int, to: Int): Boolean {
+        if (to - from != 10) return false
+        for (i in from until to) {
+            val offset = i - from
+            val ok = if (offset == 4 || offset == 7) text[i] == '-' else isDigit(text[i])
+            if (!ok) return false
+        }
+        return true
+    }
+
+    private fun isPriority(text: String, from: Int, to: Int): Boolean {
+        return to - from == 3 && text[from] == '(' && text[from + 1] in 'A'..'Z' && text[from + 2] == ')'
+    }
+
+    private fun isPrefixed(text: String, from: Int, to: Int, prefix: Char): Boolean {
+        if (to - from < 2 || text[from] != prefix) return false
+        for (i in from + 1 until to) {
+            if (isRegexWhiteSpace(text[i])) return false
+        }
+        return true
+    }
+
+    private fun isHidden(text: String, from: Int, to: Int): Boolean {
+        return to - from == 3 && (text[from] == 'h' || text[from] == 'H') && text[from + 1] == ':'
+                && (text[from + 2] == '0' || text[from + 2] == '1')
+    }
+
+    private fun isPhoneNumber(text: String, from: Int, to: Int): Boolean {
+        var start = from
+        if (start < to && text[start] == '+') start++
+        if (to - start < 4) return false
+        for (i in start until to) {
+            if (PHONE_CHARS.indexOf(text[i]) == -1) return false
+        }
+        return true
+    }
+
+    private fun isRecurrence(text: String, from: Int, to: Int): Boolean {
+        if (to - from < 5 || !hasKey(text, from, "rec:")) return false
+        var i = from + 4
+        if (text[i] == '+') i++
+        while (i < to && isDigit(text[i])) i++
+        return i == to - 1 && RECURRENCE_UNITS.indexOf(text[i]) != -1
+    }
+
+    private fun isUUID(text: String, from: Int, to: Int): Boolean {
+        if (to - from != 41 || !hasKey(text, from, "uuid:")) return false
+        for (i in from + 5 until to) {
+            val offset = i - from - 5
+            val ok = if (offset == 8 || offset == 13 || offset == 18 || offset == 23) text[i] == '-' else isHex(text[i])
+            if (!ok) return false
+        }
+        return true
+    }
+
+    private fun isLink(text: String, from: Int, to: Int): Boolean {
+        var i = from
+        while (i < to && text[i] in 'a'..'z') i++
+        if (i == from || !text.startsWith("://", i)) return false
+        i += 3
+        if (i >= to) return false
+        for (j in i until to) {
+            if (isRegexWhiteSpace(text[j])) return false
+        }
+        return true
+    }
+
+    private fun isMailLocalChar(c: Char) = isAlphaNumeric(c) || c == '+' || c == '.' || c == '_' || c == '%' || c == '-'
+
+    private fun isMail(text: String, from: Int, to: Int): Boolean {
+        var i = from
+        while (i < to && isMailLocalChar(text[i])) i++
+        val localLength = i - from
+        if (localLength < 1 || localLength > MAX_MAIL_LOCAL_LENGTH || i == to || text[i] != '@') return false
+        i++
+        var labels = 0
+        while (true) {
+            val labelStart = i
+            if (i >= to || !isAlphaNumeric(text[i])) return false
+            i++
+            while (i < to && (isAlphaNumeric(text[i]) || text[i] == '-')) i++
+            val maxLength = if (labels == 0) MAX_MAIL_FIRST_LABEL_LENGTH else MAX_MAIL_LABEL_LENGTH
+            if (i - labelStart > maxLength) return false
+            labels++
+            if (i == to) return labels > 1
+            if (text[i] != '.') return false
+            i++
+        }
+    }
+
+    // Returns the index of the `:` separating key and value or -1 if this is not a key:value lexeme.
+    private fun extSeparator(text: String, from: Int, to: Int): Int {
+        var separator = -1
+        for (i in from until to) {
+            val c = text[i]
+            if (isLineTerminator(c)) return -1
+            if (c == ':' && i > from && i < to - 1) separator = i
+        }
+        return separator
+    }
+
+    private fun isBlank(text: String, from: Int, to: Int): Boolean {
+        for (i in from until to) {
+            if (!text[i].isWhitespace()) return false
+        }
+        return true
+    }
+}
@@ -0,0 +1,90 @@
+package nl.mpcjanssen.simpletask.task
+
+import java.util.*
+
+/**
+ * Finds the tasks of a [TodoList] by id and their position in the list.
+ *
+ * Positions are numbered lazily. A change at position `n` only invalidates the
+ * positions from `n` onwards, they are renumbered on the next lookup of a task
+ * after `n`. Repeated lookups without changes in between (e.g. one per widget row)
+ * are O(1), appending tasks keeps all existing positions valid.
+ *
+ * The owner reports every change of the list, all methods are synchronized. The
+ * positions are those of the list the changes were made to, for a [TodoList] that is
+ * the list of its writer and only the writer asks for positions. Readers of a
+ * published list use [TaskSnapshot.positionOf].
+ */
+class TaskLookup {
+    private val byId = HashMap<UUID, Task>()
+    private val positions = IdentityHashMap<Task, Int>()
+    // Positions below this are known to be correct
+    private var validUpTo = 0
+
+    @Synchronized
+    fun reset(items: List<Task>) {
+        byId.clear()
+        positions.clear()
+        items.forEachIndexed { idx, task ->
+            byId[task.idUUID] = task
+            positions[task] = idx
+        }
+        validUpTo = items.size
+    }
+
+    /* The task was inserted at `position`, -1 if it was appended */
+    @Synchronized
+    fun added(task: Task, position: Int = -1) {
+        byId[task.idUUID] = task
+        positions[task] = -1
+        if (position >= 0) changedFrom(position)
+    }
+
+    @Synchronized
+    fun removed(task: Task) {
+        val position = positions.remove(task) ?: return
+        if (byId[task.idUUID] === task) byId.remove(task.idUUID)
+        // Appended tasks which were not numbered yet don't move anything
+        if (position >= 0) changedFrom(position)
+    }
+
+    /* Tasks at `position` or later were moved */
+    @Synchronized
+    fun changedFrom(position: Int) {
+        validUpTo = minOf(validUpTo, position)
+    }
+
+    /* `replacement` takes the place of `task`, e.g. a changed copy */
+    @Synchronized
+    fun replaced(task: Task, replacement: Task) {
+        val position = positions.remove(task) ?: return
+        if (byId[task.idUUID] === task) byId.remove(task.idUUID)
+        byId[replacement.idUUID] = replacement
+        positions[replacement] = position
+    }
+
+    @Synchronized
+    fun task(id: String): Task? {
+        val uuid = try {
+            UUID.fromString(id)
+        } catch (e: IllegalArgumentException) {
+            return null
+        }
+        return byId[uuid]
+    }
+
+    @Synchronized
+    fun task(id: UUID): Task? = byId[id]
+
+    /* Position of task in items, -1 if the task is not in the list */
+    @Synchronized
+    fun position(task: Task, items: List<Task>): Int {
+        val known = positions[task] ?: return -1
+        if (known in 0 until validUpTo) return known
+        for (i in validUpTo until items.size) {
+            positions[items[i]] = i
+        }
+        validUpTo = items.size
+        return positions[task] ?: -1
+    }
+}
@@ -0,0 +1,57 @@
+package nl.mpcjanssen.simpletask.task
+
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RecursiveAction
+
+/**
+ * Turns the lines of a todo.txt file into tasks.
+ *
+ * Big files are split in chunks which are parsed on a fork-join pool. The returned
+ * list is always in the same order as the lines. With `parallel` false or for small
+ * inputs the lines are parsed on the calling thread.
+ * With `compact` the tasks are created in compact storage mode, see [Task].
+ * With `lazy` the tasks only keep their line, [ensureParsed] parses them later.
+ */
+object TaskParser {
+    private const val CHUNK_SIZE = 512
+
+    // ForkJoinPool.commonPool() requires API 24
+    private val pool by lazy { ForkJoinPool(Runtime.getRuntime().availableProcessors()) }
+
+    fun parse(lines: List<String>, parallel: Boolean = true, defaultPrependedDate: String? = null, compact: Boolean = false, lazy: Boolean = false): ArrayList<Task> {
+        if (lazy || !parallel || lines.size <= CHUNK_SIZE) {
+            return lines.mapTo(ArrayList(lines.size)) { Task(it, defaultPrependedDate, compact, lazy) }
+        }
+        val input = if (lines is RandomAccess) lines else ArrayList(lines)
+        val parsed = arrayOfNulls<Task>(input.size)
+        pool.invoke(Chunk(0, input.size) { parsed[it] = Task(input[it], defaultPrependedDate, compact) })
+        return parsed.mapTo(ArrayList(parsed.size)) { it!! }
+    }
+
+    /* Parses the lazy tasks in `tasks` */
+    fun ensureParsed(tasks: List<Task>, parallel: Boolean = true) {
+        if (!parallel || tasks.size <= CHUNK_SIZE) {
+            tasks.forEach { it.ensureParsed() }
+            return
+        }
+        val input = if (tasks is RandomAccess) tasks else ArrayList(tasks)
+        pool.invoke(Chunk(0, input.size) { input[it].ensureParsed() })
+    }
+
+    private class Chunk(
+            val from: Int,
+            val to: Int,
+            val action: (Int) -> Unit
+    ) : RecursiveAction() {
+        override fun compute() {
+            if (to - from <= CHUNK_SIZE) {
+                for (i in from until to) {
+                    action(i)
+                }
+            } else {
+                val middle = (from + to) ushr 1
+                invokeAll(Chunk(from, middle, action), Chunk(middle, to, action))
+            }
+        }
+    }
+}
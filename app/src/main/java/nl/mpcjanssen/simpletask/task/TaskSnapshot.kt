@@ -0,0 +1,167 @@
+package nl.mpcjanssen.simpletask.task
+
+import java.util.*
+
+/**
+ * Immutable, versioned list of tasks.
+ *
+ * The tasks are stored in chunks of at most [MAX_CHUNK] tasks. Changes return a new
+ * snapshot with a higher version which shares all untouched chunks with this one, so
+ * changing one task copies one chunk and the chunk table instead of the whole list.
+ * Chunks which shrink below half of [CHUNK] are merged with a neighbour.
+ * A snapshot can be read from any thread while the [TodoList] moves on.
+ *
+ * Only the order and membership are frozen, the tasks themselves are still mutable.
+ */
+class TaskSnapshot private constructor(
+        private val chunks: Array<Array<Task>>,
+        // Start position of every chunk followed by the size
+        private val starts: IntArray,
+        val version: Long
+) : kotlin.collections.AbstractList<Task>(), RandomAccess {
+
+    override val size: Int
+        get() = starts[chunks.size]
+
+    internal val chunkCount: Int
+        get() = chunks.size
+
+    // Position of every task, built by the first positionOf
+    @Volatile
+    private var positions: IdentityHashMap<Task, Int>? = null
+
+    override fun get(index: Int): Task {
+        if (index < 0 || index >= size) throw IndexOutOfBoundsException("Index: $index, size: $size")
+        val chunk = chunkOf(index)
+        return chunks[chunk][index - starts[chunk]]
+    }
+
+    override fun iterator(): Iterator<Task> = chunks.asSequence().flatMap { it.asSequence() }.iterator()
+
+    /* Position of `task` in this snapshot, compared by identity, -1 if it is not in it.
+    ** The first call numbers all tasks, later calls are O(1).
+     */
+    fun positionOf(task: Task): Int {
+        val known = positions ?: IdentityHashMap<Task, Int>(size).also { numbered ->
+            forEachIndexed { idx, item -> numbered[item] = idx }
+            positions = numbered
+        }
+        return known[task] ?: -1
+    }
+
+    fun replace(index: Int, task: Task): TaskSnapshot {
+        val chunk = chunkOf(index)
+        val newChunks = chunks.copyOf()
+        newChunks[chunk] = chunks[chunk].copyOf().also { it[index - starts[chunk]] = task }
+        return TaskSnapshot(newChunks, starts, version + 1)
+    }
+
+    fun insert(index: Int, tasks: Collection<Task>): TaskSnapshot {
+        if (index < 0 || index > size) throw IndexOutOfBoundsException("Index: $index, size: $size")
+        if (tasks.isEmpty()) return this
+        if (chunks.isEmpty()) return of(tasks.toList(), version + 1)
+        // Inserting at the end goes into the last chunk
+        val chunk = if (index == size) chunks.size - 1 else chunkOf(index)
+        val offset = index - starts[chunk]
+        val old = chunks[chunk]
+        val merged = ArrayList<Task>(old.size + tasks.size)
+        for (i in 0 until offset) merged.add(old[i])
+        merged.addAll(tasks)
+        for (i in offset until old.size) merged.add(old[i])
+        return replaceChunk(chunk, split(merged))
+    }
+
+    fun append(tasks: Collection<Task>): TaskSnapshot = insert(size, tasks)
+
+    fun without(index: Int): TaskSnapshot {
+        val chunk = chunkOf(index)
+        val old = chunks[chunk]
+        val offset = index - starts[chunk]
+        val remaining = Array(old.size - 1) { if (it < offset) old[it] else old[it + 1] }
+        return replaceChunk(chunk, if (remaining.isEmpty()) emptyList() else listOf(remaining))
+    }
+
+    /* Removes the tasks in `tasks`, compared by identity */
+    fun without(tasks: Collection<Task>): TaskSnapshot {
+        if (tasks.isEmpty()) return this
+        val toRemove = Collections.newSetFromMap(IdentityHashMap<Task, Boolean>())
+        toRemove.addAll(tasks)
+        var changed = false
+        val newChunks = ArrayList<Array<Task>>(chunks.size)
+        for (chunk in chunks) {
+            if (chunk.none { it in toRemove }) {
+                newChunks.add(chunk)
+            } else {
+                changed = true
+                val remaining = chunk.filterNot { it in toRemove }
+                if (remaining.isNotEmpty()) newChunks.add(remaining.toTypedArray())
+            }
+        }
+        return if (changed) build(mergeSmall(newChunks), version + 1) else this
+    }
+
+    fun move(from: Int, to: Int): TaskSnapshot {
+        val task = get(from)
+        return without(from).insert(to, listOf(task)).withVersion(version + 1)
+    }
+
+    /* The same tasks under another version */
+    fun withVersion(newVersion: Long) = TaskSnapshot(chunks, starts, newVersion)
+
+    private fun chunkOf(index: Int): Int {
+        var low = 0
+        var high = chunks.size - 1
+        while (low < high) {
+            val middle = (low + high + 1) ushr 1
+            if (starts[middle] <= index) low = middle else high = middle - 1
+        }
+        return low
+    }
+
+    private fun replaceChunk(chunk: Int, replacement: List<Array<Task>>): TaskSnapshot {
+        val newChunks = ArrayList<Array<Task>>(chunks.size + replacement.size)
+        for (i in 0 until chunk) newChunks.add(chunks[i])
+        newChunks.addAll(replacement)
+        for (i in chunk + 1 until chunks.size) newChunks.add(chunks[i])
+        return build(mergeSmall(newChunks), version + 1)
+    }
+
+    companion object {
+        const val CHUNK = 64
+        const val MAX_CHUNK = 2 * CHUNK
+
+        val EMPTY = TaskSnapshot(emptyArray(), IntArray(1), 0)
+
+        fun of(tasks: List<Task>, version: Long = 0): TaskSnapshot {
+            return build(split(tasks), version)
+        }
+
+        private fun split(tasks: List<Task>): List<Array<Task>> {
+            if (tasks.size <= MAX_CHUNK) {
+                return if (tasks.isEmpty()) emptyList() else listOf(tasks.toTypedArray())
+            }
+            return tasks.chunked(CHUNK).map { it.toTypedArray() }
+        }
+
+        // Merges chunks smaller than CHUNK / 2 into a neighbour while the result fits in MAX_CHUNK
+        private fun mergeSmall(chunks: List<Array<Task>>): List<Array<Task>> {
+            if (chunks.none { it.size < CHUNK / 2 }) return chunks
+            val result = ArrayList<Array<Task>>(chunks.size)
+            for (chunk in chunks) {
+                val last = result.lastOrNull()
+                if (last != null && (last.size < CHUNK / 2 || chunk.size < CHUNK / 2) && last.size + chunk.size <= MAX_CHUNK) {
+                    result[result.size - 1] = arrayOf(*last, *chunk)
+                } else {
+                    result.add(chunk)
+                }
+            }
+            return result
+        }
+
+        private fun build(chunks: List<Array<Task>>, version: Long): TaskSnapshot {
+            val starts = IntArray(chunks.size + 1)
+            chunks.forEachIndexed { idx, chunk -> starts[idx + 1] = starts[idx] + chunk.size }
+            return TaskSnapshot(chunks.toTypedArray(), starts, version)
+        }
+    }
+}
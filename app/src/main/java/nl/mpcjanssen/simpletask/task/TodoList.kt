@@ -13,25 +13,72 @@ import nl.mpcjanssen.simpletask.util.*
 import java.io.File
 import java.util.*
 import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executors
+import java.util.concurrent.LinkedBlockingQueue
 import kotlin.collections.ArrayList
+import org.jetbrains.anko.doAsync
 
 /**
- * Implementation of the in memory representation of the Todo list
- * uses an ActionQueue to ensure modifications and access of the underlying todo list are
- * sequential. If this is not done properly the result is a likely ConcurrentModificationException.
+ * Implementation of the in memory representation of the Todo list.
+ * The tasks are kept in an immutable [TaskSnapshot] which is replaced on every change,
+ * readers get a consistent list from [snapshot] without copying. Changes to the list
+ * are serialized by a lock. Published tasks are not changed either, a change is made
+ * to a copy of the task which replaces it in the next snapshot. The methods find the
+ * current version of the tasks they get by id, so tasks of an older snapshot can be
+ * passed.
+ *
+ * UI actions [submit] their changes to a single writer thread. All changes queued
+ * while the writer is busy are applied as one batch which publishes one new snapshot
+ * version, saves once and sends one change notification.
+ *
+ * Besides the coarse broadcasts every published version with changed tasks is
+ * reported as [TaskChanges] to the listeners added with [addChangeListener].
 
  * @author Mark Janssen
  */
 class TodoList(val config: Config) {
     private var timer: CountDownTimer? = null
-    private var mLists: MutableList<String>? = null
-    private var mTags: MutableList<String>? = null
-    private var todoItems = emptyList<Task>().toMutableList()
-    val pendingEdits = HashSet<Task>()
+    // The published tasks
+    @Volatile
+    private var todoItems = TaskSnapshot.EMPTY
+    // The tasks being changed, published at the end of the outermost edit
+    private var working = TaskSnapshot.EMPTY
+    private var editDepth = 0
+    private val writeLock = Any()
+    private val commands = LinkedBlockingQueue<Command>()
+    private val writer = Executors.newSingleThreadExecutor()
+    // Lists, tags and priorities of working, matches todoItems outside of edits, see publishedIndex
+    private val index = TaskIndex()
+    // Id and position lookup of working, positions are only used by the writer
+    private val lookup = TaskLookup()
+    // Changed tasks per version, see addChangeListener
+    private val journal = TaskJournal()
+    private val changeListeners = CopyOnWriteArrayList<(TaskChanges) -> Unit>()
+    val pendingEdits: MutableSet<Task> = Collections.synchronizedSet(HashSet<Task>())
     internal val tag = TodoList::class.java.simpleName
 
+    // True while the lazily loaded cached tasks are parsed in the background
+    @Volatile
+    private var startupParsing = false
+
     init {
-        config.todoList?.let { todoItems.addAll(it.asSequence()) }
+        config.todoList?.let { todoItems = TaskSnapshot.of(it) }
+        working = todoItems
+        lookup.reset(todoItems)
+        if (todoItems.any { it.isLazy }) {
+            startupParsing = true
+            val startupItems = todoItems
+            doAsync {
+                val start = SystemClock.elapsedRealtime()
+                TaskParser.ensureParsed(startupItems, config.parallelParsing)
+                edit { index.rebuild(working) }
+                startupParsing = false
+                Log.d(tag, "Parsing ${startupItems.size} cached tasks took ${SystemClock.elapsedRealtime() - start} ms")
+                broadcastTasklistChanged(TodoApplication.app.localBroadCastManager)
+            }
+        } else {
+            index.rebuild(todoItems)
+        }
     }
 
 
@@ -40,12 +87,17 @@ class TodoList(val config: Config) {
         val updatedItems = items.map { item ->
             Interpreter.onAddCallback(item) ?: item
         }
-        if (atEnd) {
-            todoItems.addAll(updatedItems)
-        } else {
-            todoItems.addAll(0, updatedItems)
+        edit {
+            if (atEnd) {
+                working = working.append(updatedItems)
+                updatedItems.forEach { lookup.added(it) }
+            } else {
+                working = working.insert(0, updatedItems)
+                updatedItems.forEach { lookup.added(it, 0) }
+            }
+            index.addAll(updatedItems)
+            updatedItems.forEach { journal.added(it) }
         }
-
     }
 
     fun add(t: Task, atEnd: Boolean) {
@@ -56,10 +108,109 @@ class TodoList(val config: Config) {
     fun removeAll(tasks: List<Task>) {
         Log.d(tag, "Remove")
         pendingEdits.removeAll(tasks)
-        todoItems.removeAll(tasks)
+        edit {
+            val current = tasks.mapNotNull { lookup.task(it.idUUID) }
+            working = working.without(current)
+            index.removeAll(current)
+            current.forEach {
+                lookup.removed(it)
+                journal.removed(it)
+            }
+        }
+
+    }
+
+
+    /* The current tasks, the returned list never changes */
+    fun snapshot(): TaskSnapshot = todoItems
+
+    private class Command(
+            val description: String,
+            val save: Boolean,
+            val refreshMainUI: Boolean,
+            val forceKeepSelection: Boolean,
+            val done: (() -> Unit)?,
+            val action: () -> Unit)
+
+    /**
+     * Queues a change of the list for the writer thread.
+     *
+     * `action` runs on the writer thread and can call the other methods of this class.
+     * `done` runs on the main thread after the batch containing the change was published.
+     */
+    fun submit(description: String,
+               save: Boolean = true,
+               refreshMainUI: Boolean = true,
+               forceKeepSelection: Boolean = false,
+               done: (() -> Unit)? = null,
+               action: () -> Unit) {
+        Log.d(tag, "Queue: $description")
+        commands.add(Command(description, save, refreshMainUI, forceKeepSelection, done, action))
+        writer.execute { applyPending() }
+    }
+
+    private fun applyPending() {
+        val batch = ArrayList<Command>()
+        commands.drainTo(batch)
+        if (batch.isEmpty()) return
+        val start = SystemClock.elapsedRealtime()
+        edit {
+            batch.forEach {
+                Log.d(tag, "Apply: ${it.description}")
+                try {
+                    it.action()
+                } catch (e: Exception) {
+                    Log.e(tag, "Applying ${it.description} failed", e)
+                }
+            }
+        }
+        Log.d(tag, "Applied ${batch.size} changes in ${SystemClock.elapsedRealtime() - start} ms, version ${todoItems.version}")
+        notifyTasklistChanged(config.todoFile,
+                save = batch.any { it.save },
+                refreshMainUI = batch.any { it.refreshMainUI },
+                forceKeepSelection = batch.any { it.forceKeepSelection })
+        val callbacks = batch.mapNotNull { it.done }
+        if (callbacks.isNotEmpty()) {
+            runOnMainThread(Runnable { callbacks.forEach { it() } })
+        }
+    }
+
+    /* Runs `body` with the write lock held, the outermost edit publishes the changed list */
+    private fun <T> edit(body: () -> T): T {
+        var changes: TaskChanges? = null
+        val result = synchronized(writeLock) {
+            editDepth++
+            try {
+                body()
+            } finally {
+                editDepth--
+                if (editDepth == 0) {
+                    val from = todoItems.version
+                    working = working.withVersion(from + 1)
+                    todoItems = working
+                    changes = journal.commit(from, working.version)
+                }
+            }
+        }
+        // Outside of the lock, listeners may read the list
+        changes?.let { published ->
+            Log.d(tag, "Changed: $published")
+            changeListeners.forEach { it(published) }
+        }
+        return result
+    }
 
+    /**
+     * `listener` is called with the changed tasks of every new version of the list,
+     * on the thread which made the change.
+     */
+    fun addChangeListener(listener: (TaskChanges) -> Unit) {
+        changeListeners.add(listener)
     }
 
+    fun removeChangeListener(listener: (TaskChanges) -> Unit) {
+        changeListeners.remove(listener)
+    }
 
     fun size(): Int {
         return todoItems.size
@@ -78,93 +229,107 @@ class TodoList(val config: Config) {
         }
 
     val contexts: List<String>
+        get() = ArrayList(index.listCounts().keys)
 
-        get() {
-            val lists = mLists
-            if (lists != null) {
-                return lists
-            }
-            val res = HashSet<String>()
-            todoItems.forEach { t ->
-                t.lists?.let {res.addAll(it)}
+    val projects: List<String>
+        get() = ArrayList(index.tagCounts().keys)
 
-            }
-            val newLists = res.toMutableList()
-            mLists = newLists
-            return newLists
-        }
+    /* Open and total number of tasks per list, kept up to date by the index */
+    val listCounts: Map<String, TaskIndex.Count>
+        get() = index.listCounts()
 
-    val projects: List<String>
+    val tagCounts: Map<String, TaskIndex.Count>
+        get() = index.tagCounts()
 
-        get() {
-            val tags = mTags
-            if (tags != null) {
-                return tags
-            }
-            val res = HashSet<String>()
-            todoItems.forEach { t ->
-                t.tags?.let {res.addAll(it)}
+    /* Replaces the current version of `task` with a copy changed by `body`,
+    ** returns the copy or null if the task is no longer in the list.
+     */
+    private fun change(task: Task, body: (Task) -> Unit): Task? {
+        val current = lookup.task(task.idUUID) ?: return null
+        val idx = lookup.position(current, working)
+        if (idx == -1) return null
+        val copy = current.copy()
+        body(copy)
+        working = working.replace(idx, copy)
+        index.remove(current)
+        index.add(copy)
+        lookup.replaced(current, copy)
+        journal.updated(copy)
+        return copy
+    }
 
-            }
-            val newTags = res.toMutableList()
-            mTags = newTags
-            return newTags
-        }
+    /* Changes the tasks with `body`, e.g. from a [submit]ted action */
+    fun changeTasks(tasks: Collection<Task>, body: (Task) -> Unit) = edit {
+        tasks.forEach { change(it, body) }
+    }
 
 
-    fun uncomplete(items: List<Task>) {
+    fun uncomplete(items: List<Task>) = edit {
         Log.d(tag, "Uncomplete")
-        items.forEach {
-            it.markIncomplete()
-        }
+        items.forEach { change(it) { task -> task.markIncomplete() } }
     }
 
 
-    fun complete(tasks: List<Task>, keepPrio: Boolean, extraAtEnd: Boolean) {
+    fun complete(tasks: List<Task>, keepPrio: Boolean, extraAtEnd: Boolean) = edit {
         Log.d(tag, "Complete")
         for (task in tasks) {
-            val extra = task.markComplete(todayAsString)
-            if (extra != null) {
+            var extra: Task? = null
+            change(task) {
+                extra = it.markComplete(todayAsString)
+                if (!keepPrio) {
+                    it.priority = Priority.NONE
+                }
+            }
+            extra?.let {
                 if (extraAtEnd) {
-                    todoItems.add(extra)
+                    working = working.append(listOf(it))
+                    lookup.added(it)
                 } else {
-                    todoItems.add(0, extra)
+                    working = working.insert(0, listOf(it))
+                    lookup.added(it, 0)
                 }
-            }
-            if (!keepPrio) {
-                task.priority = Priority.NONE
+                index.add(it)
+                journal.added(it)
             }
         }
-
     }
 
 
-    fun prioritize(tasks: List<Task>, prio: Priority) {
+    fun prioritize(tasks: List<Task>, prio: Priority) = edit {
         Log.d(tag, "Complete")
-        tasks.map { it.priority = prio }
+        tasks.forEach { change(it) { task -> task.priority = prio } }
     }
 
 
-    fun defer(deferString: String, tasks: List<Task>, dateType: DateType) {
+    fun defer(deferString: String, tasks: List<Task>, dateType: DateType) = edit {
         Log.d(tag, "Defer")
         tasks.forEach {
-            when (dateType) {
-                DateType.DUE -> it.deferDueDate(deferString, todayAsString)
-                DateType.THRESHOLD -> it.deferThresholdDate(deferString, todayAsString)
+            change(it) { task ->
+                when (dateType) {
+                    DateType.DUE -> task.deferDueDate(deferString, todayAsString)
+                    DateType.THRESHOLD -> task.deferThresholdDate(deferString, todayAsString)
+                }
             }
         }
     }
 
 
-    fun update(org: Collection<Task>, updated: List<Task>, addAtEnd: Boolean) {
+    fun update(org: Collection<Task>, updated: List<Task>, addAtEnd: Boolean) = edit {
         val smallestSize = org.zip(updated) { orgTask, updatedTask ->
-            val idx = todoItems.indexOf(orgTask)
-            if (idx != -1) {
+            val current = lookup.task(orgTask.idUUID)
+            val idx = current?.let { lookup.position(it, working) } ?: -1
+            if (current != null && idx != -1) {
                 updatedTask.id = orgTask.id
-                todoItems[idx] = updatedTask
+                working = working.replace(idx, updatedTask)
+                index.remove(current)
+                lookup.replaced(current, updatedTask)
+                journal.updated(updatedTask)
             } else {
-                todoItems.add(updatedTask)
+                working = working.append(listOf(updatedTask))
+                lookup.added(updatedTask)
+                journal.added(updatedTask)
             }
+            index.add(updatedTask)
             1
         }.size
         removeAll(org.toMutableList().drop(smallestSize))
@@ -174,10 +339,10 @@ class TodoList(val config: Config) {
     val selectedTasks: List<Task>
 
         get() {
-            return todoItems.toList().filter { it.selected }
+            return todoItems.filter { it.selected }
         }
 
-    val fileFormat : String =  todoItems.toList().joinToString(separator = "\n", transform = {
+    val fileFormat : String =  todoItems.joinToString(separator = "\n", transform = {
         it.inFileFormat(config.useUUIDs)
     })
 
@@ -197,8 +362,6 @@ class TodoList(val config: Config) {
         } else if (!config.hasKeepSelection && !forceKeepSelection) {
             clearSelection()
         }
-        mLists = null
-        mTags = null
         if (refreshMainUI) {
             broadcastTasklistChanged(TodoApplication.app.localBroadCastManager)
         } else {
@@ -214,24 +377,49 @@ class TodoList(val config: Config) {
         act.startActivity(intent)
     }
 
-    fun getMultiComparator(filter: Query, caseSensitive: Boolean): MultiComparator {
+    fun getMultiComparator(filter: Query, caseSensitive: Boolean, withLua: Boolean = true): MultiComparator {
         val sorts = filter.getSort(config.defaultSorts)
-        return MultiComparator(sorts, TodoApplication.app.today, caseSensitive, filter.createIsThreshold, filter.luaModule)
+        val moduleName = if (withLua) filter.luaModule else null
+        return MultiComparator(sorts, TodoApplication.app.today, caseSensitive, filter.createIsThreshold, moduleName)
     }
 
-    fun getSortedTasks(filter: Query, caseSensitive: Boolean): Pair<List<Task>, Int> {
+    fun getSortedTasks(filter: Query, caseSensitive: Boolean, refresh: RefreshPipeline.Refresh? = null): Pair<List<Task>, Int> {
         Log.d(tag, "Getting sorted and filtered tasks")
         val start = SystemClock.elapsedRealtime()
         val comp = getMultiComparator(filter, caseSensitive)
-        val listCopy = todoItems.toList()
+        val listCopy = todoItems
         val taskCount = listCopy.size
+        if (startupParsing) {
+            // Show the tasks unfiltered in file order until they are parsed,
+            // the list is refreshed again when parsing is done.
+            Log.d(tag, "Tasks still loading, returning them in file order")
+            return Pair(listCopy, taskCount)
+        }
         val itemsToSort = if (comp.fileOrder) {
             listCopy
         } else {
             listCopy.reversed()
         }
-        val sortedItems = itemsToSort.sortedWith(comp.comparator)
-        val result = filter.applyFilter(sortedItems, showSelected = true)
+        // Compact tasks build their fields once for the whole pass
+        val result = Task.withFieldCache {
+            var sortedItems = comp.sort(itemsToSort, refresh)
+            val filterStart = SystemClock.elapsedRealtime()
+            val listIndex = publishedIndex(listCopy.version)
+            var filtered = filter.applyFilter(sortedItems, showSelected = true, index = listIndex, version = listCopy.version, refresh = refresh) { plan ->
+                if (SystemClock.elapsedRealtime() - filterStart > SLOW_FILTER_MS) {
+                    // Shows up in the debug info screen
+                    Log.i(tag, "Slow filter: " + plan.explain())
+                }
+            }
+            if (Interpreter.budgetExceeded) {
+                // The scripts were aborted part way, sort and filter all tasks as if there were none
+                Log.w(tag, "Lua budget exceeded, sorting and filtering without Lua")
+                sortedItems = getMultiComparator(filter, caseSensitive, withLua = false).sort(itemsToSort, refresh)
+                filtered = filter.applyFilter(sortedItems, showSelected = true, index = listIndex, version = listCopy.version,
+                        withLua = false, refresh = refresh)
+            }
+            filtered
+        }
         val end = SystemClock.elapsedRealtime()
         Log.d(tag, "Sorting and filtering tasks took ${end - start} ms")
         return Pair(result, taskCount)
@@ -239,6 +427,27 @@ class TodoList(val config: Config) {
     }
 
 
+    /* The index as it was when `version` was published. The index follows the working
+    ** list, under the write lock no edit is running and it matches the published list.
+     */
+    private fun publishedIndex(version: Long): IndexLookup = { select ->
+        synchronized(writeLock) {
+            if (todoItems.version == version) index.tasks(select(index)) else null
+        }
+    }
+
+    /* Filters the current tasks with `filter` and describes how the filter was evaluated */
+    fun explainFilter(filter: Query): String = Interpreter.leased {
+        val listCopy = todoItems
+        filter.initInterpreter(if (filter.useScript) filter.script else null)
+        val plan = filter.compile(showSelected = true, index = publishedIndex(listCopy.version))
+        val start = SystemClock.elapsedRealtime()
+        val count = plan.filter(listCopy).size
+        val end = SystemClock.elapsedRealtime()
+        plan.explain() + "$count of ${listCopy.size} tasks matched in ${end - start} ms\n"
+    }
+
+
     fun reload(reason: String = "") {
         FileStoreActionQueue.add("Reload") {
             Log.d(tag, "Reload: $reason")
@@ -265,12 +474,15 @@ class TodoList(val config: Config) {
             try {
                 val items = FileStore.loadTasksFromFile(file)
 
-                val newTodoItems = items.map { Task(it) }.toMutableList()
-                synchronized(todoItems) {
+                val newTodoItems = TaskParser.parse(items, config.parallelParsing, compact = config.compactTaskStorage)
+                edit {
                     Log.d(tag, "Fill todolist with ${items.size} items")
-                    todoItems = newTodoItems
-                    config.todoList = todoItems.toList()
+                    working = TaskSnapshot.of(newTodoItems)
+                    index.rebuild(newTodoItems)
+                    lookup.reset(newTodoItems)
+                    journal.reloaded()
                 }
+                config.todoList = todoItems
                 // Update cache
                 // Backup
                 FileStoreActionQueue.add("Backup") {
@@ -294,7 +506,7 @@ class TodoList(val config: Config) {
         Log.d(tag, "Save: ${todoFile.path}")
         config.changesPending = true
         broadcastUpdateStateIndicator(TodoApplication.app.localBroadCastManager)
-        val lines = todoItems.toList().let {
+        val lines = todoItems.let {
             config.todoList = it
            it.map {
                 it.inFileFormat(config.useUUIDs)
@@ -359,8 +571,7 @@ class TodoList(val config: Config) {
             broadcastFileSyncStart(TodoApplication.app.localBroadCastManager)
             try {
                 FileStore.appendTaskToFile(doneFile, tasks.map {it.inFileFormat(useUUIDs = TodoApplication.config.useUUIDs)}, eol)
-                removeAll(tasks)
-                notifyTasklistChanged(todoFile, save = true, refreshMainUI = true)
+                submit("Archive ${tasks.size} tasks") { removeAll(tasks) }
             } catch (e: Exception) {
                 Log.e(tag, "Task archiving failed", e)
                 showToastShort(TodoApplication.app, "Task archiving failed")
@@ -369,27 +580,38 @@ class TodoList(val config: Config) {
         }
     }
 
-    fun moveAbove(other: Task, itemToMove: Task) {
-        val oldIndex = todoItems.indexOf(itemToMove)
-        todoItems.removeAt(oldIndex)
+    fun moveAbove(other: Task, itemToMove: Task) = edit {
+        val oldIndex = currentPosition(itemToMove)
+        val otherIndex = currentPosition(other)
+        if (oldIndex == -1 || otherIndex == -1) return@edit
 
-        val newIndex = todoItems.indexOf(other)
-        todoItems.add(newIndex, itemToMove)
+        val newIndex = if (otherIndex > oldIndex) otherIndex - 1 else otherIndex
+        working = working.move(oldIndex, newIndex)
+        lookup.changedFrom(minOf(oldIndex, newIndex))
+        journal.updated(working[newIndex])
     }
 
-    fun moveBelow(other: Task, itemToMove: Task) {
-        val oldIndex = todoItems.indexOf(itemToMove)
-        todoItems.removeAt(oldIndex)
+    fun moveBelow(other: Task, itemToMove: Task) = edit {
+        val oldIndex = currentPosition(itemToMove)
+        val otherIndex = currentPosition(other)
+        if (oldIndex == -1 || otherIndex == -1) return@edit
 
-        val newIndex = todoItems.indexOf(other) + 1
-        todoItems.add(newIndex, itemToMove)
+        val newIndex = if (otherIndex > oldIndex) otherIndex else otherIndex + 1
+        working = working.move(oldIndex, newIndex)
+        lookup.changedFrom(minOf(oldIndex, newIndex))
+        journal.updated(working[newIndex])
+    }
+
+    // Position of the current version of `task` in working, -1 if it was removed
+    private fun currentPosition(task: Task): Int {
+        return lookup.task(task.idUUID)?.let { lookup.position(it, working) } ?: -1
     }
 
     fun isSelected(item: Task): Boolean = item.selected
 
 
     fun numSelected(): Int {
-        return todoItems.toList().count { it.selected }
+        return todoItems.count { it.selected }
     }
 
 
@@ -427,7 +649,7 @@ class TodoList(val config: Config) {
 
 
     fun getTaskIndex(t: Task): Int {
-        return todoItems.indexOf(t)
+        return todoItems.positionOf(t)
     }
 
 
@@ -436,7 +658,7 @@ class TodoList(val config: Config) {
     }
 
     fun getTaskWithId(id: String): Task? {
-        return todoItems.find { it.id == id }
+        return lookup.task(id)
     }
 
 
@@ -456,4 +678,9 @@ class TodoList(val config: Config) {
         Log.d(tag, "Clear selection")
         pendingEdits.clear()
     }
+
+    companion object {
+        // Filtering slower than this logs the query plan
+        private const val SLOW_FILTER_MS = 100
+    }
 }
@@ -0,0 +1,90 @@
+package nl.mpcjanssen.simpletask.task
+
+import androidx.recyclerview.widget.DiffUtil
+import nl.mpcjanssen.simpletask.HeaderLine
+import nl.mpcjanssen.simpletask.TaskLine
+import nl.mpcjanssen.simpletask.VisibleLine
+
+/**
+ * Compares two lists of [VisibleLine]s, so a refresh of the task list only updates the
+ * rows that changed.
+ *
+ * Lines are the same if they show the same task or the same occurrence of a group. Their contents are
+ * the same if the task wasn't changed or (un)selected in between and the title of the
+ * header, with the count, is the same.
+ */
+class VisibleLineDiff(private val oldLines: List<VisibleLine>, private val newLines: List<VisibleLine>) : DiffUtil.Callback() {
+    override fun getOldListSize() = oldLines.size
+
+    override fun getNewListSize() = newLines.size
+
+    override fun areItemsTheSame(oldPosition: Int, newPosition: Int) = sameLine(oldLines[oldPosition], newLines[newPosition])
+
+    override fun areContentsTheSame(oldPosition: Int, newPosition: Int) = sameContents(oldLines[oldPosition], newLines[newPosition])
+
+    companion object {
+        // Computing larger differences takes too long, the list is replaced then
+        const val MAX_CHANGES = 2000
+
+        fun sameLine(old: VisibleLine, new: VisibleLine): Boolean {
+            return when {
+                old is TaskLine && new is TaskLine -> old.task.stableId == new.task.stableId
+                old is HeaderLine && new is HeaderLine -> old.group == new.group && old.occurrence == new.occurrence
+                else -> false
+            }
+        }
+
+        fun sameContents(old: VisibleLine, new: VisibleLine): Boolean {
+            return when {
+                old is TaskLine && new is TaskLine ->
+                    old.task === new.task && old.version == new.version && old.selected == new.selected
+                old is HeaderLine && new is HeaderLine -> old.title == new.title
+                else -> false
+            }
+        }
+
+        /* The changes from `oldLines` to `newLines`, null if there are too many */
+        fun calculate(oldLines: List<VisibleLine>, newLines: List<VisibleLine>): DiffUtil.DiffResult? {
+            if (tooManyChanges(oldLines, newLines)) return null
+            return DiffUtil.calculateDiff(VisibleLineDiff(oldLines, newLines))
+        }
+
+        // Lines that are only in one of the lists are changes at least, e.g. after a reload
+        // all tasks get new ids
+        fun tooManyChanges(oldLines: List<VisibleLine>, newLines: List<VisibleLine>): Boolean {
+            val oldKeys = oldLines.mapTo(HashSet()) { key(it) }
+            val common = newLines.count { key(it) in oldKeys }
+            return oldLines.size + newLines.size - 2 * common > MAX_CHANGES
+        }
+
+        // Equal for lines that are the same, see sameLine
+        private fun key(line: VisibleLine): Any {
+            return when (line) {
+                is TaskLine -> line.task.stableId
+                is HeaderLine -> Pair(line.group, line.occurrence)
+                else -> throw IllegalArgumentException("Unknown line $line")
+            }
+        }
+    }
+}
+
+/**
+ * The stable ids of the lines of one adapter. A task line has the id of its task, a
+ * header gets the next number the first time its occurrence of a group is shown and keeps it.
+ */
+class LineIds {
+    private val headerIds = HashMap<Pair<String, Int>, Long>()
+
+    fun of(line: VisibleLine): Long {
+        return when (line) {
+            is TaskLine -> line.task.stableId
+            is HeaderLine -> headerIds.getOrPut(Pair(line.group, line.occurrence)) { HEADER_ID + headerIds.size }
+            else -> throw IllegalArgumentException("Unknown line $line")
+        }
+    }
+
+    companion object {
+        // Header ids start here, task ids are random so a clash is very unlikely
+        private const val HEADER_ID = 1L shl 32
+    }
+}
@@ -8,6 +8,7 @@ import me.smichel.android.KPreferences.Preferences
 import nl.mpcjanssen.simpletask.*
 import nl.mpcjanssen.simpletask.remote.FileStore
 import nl.mpcjanssen.simpletask.task.Task
+import nl.mpcjanssen.simpletask.task.TaskParser
 import org.json.JSONObject
 import java.io.File
 import java.util.*
@@ -224,15 +225,23 @@ class Config(app: TodoApplication) : Preferences(app) {
 
     val hasColorDueDates by BooleanPreference(R.string.color_due_date_key, true)
 
+    val parallelParsing by BooleanPreference(R.string.parallel_parsing, true)
+
+    val compactTaskStorage by BooleanPreference(R.string.compact_task_storage, false)
+
+    val lazyStartup by BooleanPreference(R.string.lazy_startup, false)
+
+    val luaBudgetMs by IntPreference(R.string.lua_budget_ms, 0)
+
+    val profileLua by BooleanPreference(R.string.profile_lua, false)
+
     private var cachedContents by StringOrNullPreference(R.string.cached_todo_file)
 
     var todoList: List<Task>?
         get() = cachedContents?.let {
             val lines = it.lines()
             Log.i(TAG, "Getting ${lines.size} items todoList from cache")
-            ArrayList<Task>().apply {
-                addAll(lines.map { line -> Task(line) })
-            }
+            TaskParser.parse(lines, parallelParsing, compact = compactTaskStorage, lazy = lazyStartup)
         }
         set(items) {
             Log.i(TAG, "Updating todoList cache with ${items?.size} tasks")
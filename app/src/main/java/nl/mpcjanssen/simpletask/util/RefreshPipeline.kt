@@ -0,0 +1,83 @@
+package nl.mpcjanssen.simpletask.util
+
+import android.util.Log
+import java.util.concurrent.CancellationException
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Computes refreshes one at a time on a background thread and only publishes the
+ * result of the latest one.
+ *
+ * Submitting a refresh cancels the earlier ones: a waiting refresh is skipped and a
+ * running one stops at its next [Refresh.checkCancelled], their results are dropped.
+ * The result is published with `post`, e.g. on the main thread, unless a newer
+ * refresh was submitted in the meantime. The same goes for the error of a failed one.
+ * Call [shutdown] when the pipeline isn't used anymore.
+ */
+class RefreshPipeline(private val name: String, private val post: (() -> Unit) -> Unit) {
+
+    inner class Refresh internal constructor(private val generation: Long) {
+        val isCancelled: Boolean
+            get() = generation != latest.get()
+
+        fun checkCancelled() {
+            if (isCancelled) throw CancellationException("$name refresh $generation is stale")
+        }
+
+        /* For loops over the tasks, checks every CHECK_INTERVAL items */
+        fun checkCancelled(index: Int) {
+            if (index % CHECK_INTERVAL == 0) checkCancelled()
+        }
+    }
+
+    private val latest = AtomicLong()
+    private val worker = Executors.newSingleThreadExecutor { runnable ->
+        Thread(runnable, name).apply { isDaemon = true }
+    }
+
+    fun <T> submit(compute: (Refresh) -> T, failed: (Exception) -> Unit = {}, publish: (T) -> Unit) {
+        val refresh = Refresh(latest.incrementAndGet())
+        try {
+            worker.execute { run(refresh, compute, failed, publish) }
+        } catch (e: RejectedExecutionException) {
+            Log.w(name, "Refresh after shutdown ignored")
+        }
+    }
+
+    private fun <T> run(refresh: Refresh, compute: (Refresh) -> T, failed: (Exception) -> Unit, publish: (T) -> Unit) {
+        if (refresh.isCancelled) {
+            return
+        }
+        val result = try {
+            compute(refresh)
+        } catch (e: CancellationException) {
+            Log.d(name, "Cancelled: ${e.message}")
+            return
+        } catch (e: Exception) {
+            Log.e(name, "Refresh failed", e)
+            if (!refresh.isCancelled) {
+                post {
+                    if (!refresh.isCancelled) failed(e)
+                }
+            }
+            return
+        }
+        if (!refresh.isCancelled) {
+            post {
+                if (!refresh.isCancelled) publish(result)
+            }
+        }
+    }
+
+    /* Cancels the pending refreshes and stops the worker thread once the running one stopped */
+    fun shutdown() {
+        latest.incrementAndGet()
+        worker.shutdown()
+    }
+
+    companion object {
+        const val CHECK_INTERVAL = 256
+    }
+}
@@ -37,6 +37,7 @@ import hirondelle.date4j.DateTime
 import nl.mpcjanssen.simpletask.*
 import nl.mpcjanssen.simpletask.adapters.ItemDialogAdapter
 import nl.mpcjanssen.simpletask.databinding.UpdateItemsDialogBinding
+import nl.mpcjanssen.simpletask.task.EpochDay
 import nl.mpcjanssen.simpletask.task.Task
 import org.commonmark.parser.Parser
 import org.commonmark.renderer.html.HtmlRenderer
@@ -147,10 +148,19 @@ fun addHeaderLines(visibleTasks: List<Task>, sorts: List<String>, no_header: Str
     val result = ArrayList<VisibleLine>()
     var count = 0
     var headerLine: HeaderLine? = null
+    val occurrences = HashMap<String, Int>()
     val luaGrouping = moduleName != null && Interpreter.hasOnGroupCallback(moduleName)
-    for (item in visibleTasks) {
+    // Group keys of all tasks in one call if the module defines onGroupKeys
+    val batchHeaders = if (moduleName != null && luaGrouping) {
+        Interpreter.onGroupKeys(moduleName, visibleTasks)?.takeIf { it.size == visibleTasks.size }
+    } else {
+        null
+    }
+    visibleTasks.forEachIndexed { idx, item ->
         val t = item
-        val newHeader = if (moduleName != null && luaGrouping) {
+        val newHeader = if (batchHeaders != null) {
+            batchHeaders[idx]
+        } else if (moduleName != null && luaGrouping) {
             Interpreter.onGroupCallback(moduleName, t)
         } else {
             null
@@ -159,7 +169,9 @@ fun addHeaderLines(visibleTasks: List<Task>, sorts: List<String>, no_header: Str
             if (headerLine != null) {
                 headerLine.title += " ($count)"
             }
-            headerLine = HeaderLine(newHeader)
+            val occurrence = occurrences[newHeader] ?: 0
+            occurrences[newHeader] = occurrence + 1
+            headerLine = HeaderLine(newHeader, occurrence)
             count = 0
             result.add(headerLine)
             header = newHeader
@@ -181,9 +193,10 @@ fun addHeaderLines(visibleTasks: List<Task>, sorts: List<String>, no_header: Str
     return result
 }
 
-fun addHeaderLines(visibleTasks: List<Task>, filter: Query, no_header: String): List<VisibleLine> {
+fun addHeaderLines(visibleTasks: List<Task>, filter: Query, no_header: String, withLua: Boolean = true): List<VisibleLine> {
     val sorts = filter.getSort(TodoApplication.config.defaultSorts)
-    return addHeaderLines(visibleTasks, sorts, no_header, filter.createIsThreshold, filter.luaModule)
+    val moduleName = if (withLua) filter.luaModule else null
+    return addHeaderLines(visibleTasks, sorts, no_header, filter.createIsThreshold, moduleName)
 }
 
 fun join(s: Collection<String>?, delimiter: String): String {
@@ -297,6 +310,10 @@ fun createAlertDialog(act: Activity, titleId: Int, alert: String): AlertDialog {
     return builder.create()
 }
 
+/* On OK `positiveButtonListener` is called with the change to make to each of the tasks,
+** it decides where and to which task it is applied, e.g. to a copy on the writer thread
+** of the todo list.
+ */
 @SuppressLint("InflateParams")
 fun Activity.updateItemsDialog(
         title: String,
@@ -305,7 +322,7 @@ fun Activity.updateItemsDialog(
         retrieveFromTask: (Task) -> Set<String>?,
         addToTask: (Task, String) -> Unit,
         removeFromTask: (Task, String) -> Unit,
-        positiveButtonListener: () -> Unit
+        positiveButtonListener: (changeTask: (Task) -> Unit) -> Unit
 ) {
     val view = layoutInflater.inflate(R.layout.update_items_dialog, null, false)
     val itemAdapter = ItemDialogAdapter(tasks, allItems, retrieveFromTask)
@@ -332,23 +349,19 @@ fun Activity.updateItemsDialog(
         setView(view)
         setPositiveButton(R.string.ok) { _, _ ->
             val updatedValues = itemAdapter.changedItems()
-            updatedValues.forEach { (item, value) ->
-                when (value) {
-                    false -> tasks.forEach { 
-                        removeFromTask(it, item)
-                    }
-                    true -> tasks.forEach {
-                        addToTask(it, item)
+            val newText = editText.text.toString()
+            positiveButtonListener { task ->
+                updatedValues.forEach { (item, value) ->
+                    when (value) {
+                        false -> removeFromTask(task, item)
+                        true -> addToTask(task, item)
+                        // null ->  Nothing to do with indeterminite state
                     }
-                    // null ->  Nothing to do with indeterminite state
+                }
+                if (newText.isNotBlank()) {
+                    addToTask(task, newText)
                 }
             }
-            val newText = editText.text.toString()
-            if (newText.isNotBlank()) {
-                tasks.forEach { addToTask(it, newText) }
-            }
-
-            positiveButtonListener()
         }
         setNegativeButton(R.string.cancel) { _, _ -> }
     }
@@ -569,13 +582,13 @@ fun readAsset(assets: AssetManager, name: String): String {
 }
 
 fun getRelativeThresholdDate(task: Task, app: TodoApplication): String? {
-    val date = task.thresholdDate ?: return null
-    return getRelativeDate(app, "T: ", date).toString()
+    if (task.thresholdDate == null) return null
+    return getRelativeDate(app, "T: ", task.thresholdDay).toString()
 }
 
 fun getRelativeDueDate(task: Task, app: TodoApplication): SpannableString? {
-    val date = task.dueDate ?: return null
-    return getRelativeDate(app, "Due: ", date)
+    if (task.dueDate == null) return null
+    return getRelativeDate(app, "Due: ", task.dueDay)
 }
 
 /**
@@ -593,15 +606,14 @@ fun getRelativeDueDate(task: Task, app: TodoApplication): SpannableString? {
  * months, and years, you can add the other cases in by copying the logic
  * for hours, minutes, seconds.
 
- * @param dateString date to calculate difference to
+ * @param date date to calculate difference to in days since 1970-01-01
  * *
  * @return String representing the relative date
  */
 
-private fun getRelativeDate(app: TodoApplication, prefix: String, dateString: String): SpannableString? {
-    val date = dateString.toDateTime() ?: return null
-    val now = DateTime.today(TimeZone.getDefault())
-    val days = date.numDaysFrom(now)
+private fun getRelativeDate(app: TodoApplication, prefix: String, date: Int): SpannableString? {
+    if (date == EpochDay.NONE) return null
+    val days = EpochDay.today() - date
     val months = days / 31
     val weeks = days / 7
     val years = days / 365
@@ -616,7 +628,7 @@ private fun getRelativeDate(app: TodoApplication, prefix: String, dateString: St
         days > 1 -> app.getString(R.string.dates_days_ago, days)
         days == 0 -> app.getString(R.string.dates_today)
         days == -1 -> app.getString(R.string.dates_tomorrow)
-        else -> date.toString()
+        else -> EpochDay.format(date)
     }
 
     val ss = SpannableString(prefix + s)
@@ -627,7 +639,7 @@ private fun getRelativeDate(app: TodoApplication, prefix: String, dateString: St
         val dueTomorrowColor = ContextCompat.getColor(app, R.color.simple_blue_light)
         when {
             days == 0 -> setColor(ss, dueTodayColor)
-            date.lteq(now) -> setColor(ss, overDueColor)
+            days > 0 -> setColor(ss, overDueColor)
             days == -1 -> setColor(ss, dueTomorrowColor)
         }
     }
@@ -636,8 +648,8 @@ private fun getRelativeDate(app: TodoApplication, prefix: String, dateString: St
 }
 
 fun getRelativeAge(task: Task, app: TodoApplication): String? {
-    val date = task.createDate ?: return null
-    return getRelativeDate(app, "", date).toString()
+    if (task.createDate == null) return null
+    return getRelativeDate(app, "", task.createDay).toString()
 }
 
 fun initTaskWithFilter(task: Task, mFilter: Query) {
@@ -650,6 +662,12 @@ fun initTaskWithFilter(task: Task, mFilter: Query) {
     }
 }
 
+fun epochDayToDateTime(epochDay: Int): DateTime? {
+    if (epochDay == EpochDay.NONE) return null
+    val ymd = EpochDay.toYearMonthDay(epochDay)
+    return DateTime.forDayOnly(ymd / 10000, ymd / 100 % 100, ymd % 100)
+}
+
 fun String.toDateTime(): DateTime? {
     val date: DateTime?
     if (DateTime.isParseable(this)) {
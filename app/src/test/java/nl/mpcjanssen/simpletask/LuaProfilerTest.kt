@@ -0,0 +1,46 @@
+package nl.mpcjanssen.simpletask
+
+import junit.framework.TestCase
+
+class LuaProfilerTest : TestCase() {
+    fun testStats() {
+        val profiler = LuaProfiler()
+        (1..100).forEach { profiler.record("main", "onFilter", it * 1000000L, LuaProfiler.Outcome.OK) }
+        profiler.record("main", "onFilter", 500000000L, LuaProfiler.Outcome.ABORTED)
+        profiler.record("main", "onFilter", 0, LuaProfiler.Outcome.SKIPPED)
+        profiler.record("main", "onDisplay", 2000000L, LuaProfiler.Outcome.ERROR)
+        profiler.record("widget1", "onFilter", 1000000L, LuaProfiler.Outcome.OK)
+
+        val stats = profiler.stats("main", "onFilter")!!
+        assertEquals(101L, stats.calls)
+        assertEquals(1L, stats.aborted)
+        assertEquals(1L, stats.skipped)
+        assertEquals(100000000L, stats.p99Nanos)
+        assertEquals(listOf("onDisplay: 1 calls, total 2.00 ms, p99 2.00 ms, 1 errors",
+                "onFilter: 101 calls, total 5550.00 ms, p99 100.00 ms, 1 aborted, 1 skipped"), profiler.report("main"))
+        assertEquals(3, profiler.report().size)
+        assertEquals("widget1.onFilter: 1 calls, total 1.00 ms, p99 1.00 ms", profiler.report()[2])
+    }
+
+    fun testPercentileOfRecentCalls() {
+        val profiler = LuaProfiler()
+        repeat(LuaProfiler.SAMPLES) { profiler.record("main", "onSort", 100000000L, LuaProfiler.Outcome.OK) }
+        repeat(LuaProfiler.SAMPLES) { profiler.record("main", "onSort", 1000000L, LuaProfiler.Outcome.OK) }
+        assertEquals(1000000L, profiler.stats("main", "onSort")!!.p99Nanos)
+    }
+
+    fun testConcurrentCalls() {
+        val profiler = LuaProfiler()
+        val threads = (1..4).map {
+            Thread {
+                repeat(10000) { profiler.record("main", "onFilter", 1000L, LuaProfiler.Outcome.OK) }
+            }
+        }
+        threads.forEach { it.start() }
+        threads.forEach { it.join() }
+        val stats = profiler.stats("main", "onFilter")!!
+        assertEquals(40000L, stats.calls)
+        assertEquals(40000000L, stats.totalNanos)
+        assertEquals(1000L, stats.p99Nanos)
+    }
+}
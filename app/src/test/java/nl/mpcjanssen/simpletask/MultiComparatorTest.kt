@@ -0,0 +1,36 @@
+package nl.mpcjanssen.simpletask
+
+import junit.framework.TestCase
+import nl.mpcjanssen.simpletask.task.Task
+import java.util.*
+
+class MultiComparatorTest : TestCase() {
+    private val sorts = arrayListOf("+!completed", "-!by_prio", "+!by_context", "+!by_project",
+            "+!by_due_date", "-!by_threshold_date", "+!alphabetical")
+
+    private fun syntheticTasks(count: Int): List<Task> {
+        val random = Random(42)
+        val words = listOf("Call", "mail", "buy", "Fix", "write", "read", "plan", "Clean")
+        return (0 until count).map {
+            val line = StringBuilder()
+            if (random.nextInt(4) == 0) line.append("x 2020-01-${10 + random.nextInt(10)} ")
+            if (random.nextInt(2) == 0) line.append("(${'A' + random.nextInt(4)}) ")
+            line.append(words[random.nextInt(words.size)]).append(" item ").append(random.nextInt(100))
+            repeat(random.nextInt(3)) { line.append(" @").append(if (random.nextBoolean()) "Home" else "work").append(random.nextInt(10)) }
+            repeat(random.nextInt(2)) { line.append(" +project").append(random.nextInt(20)) }
+            if (random.nextBoolean()) line.append(" due:2020-02-${10 + random.nextInt(19)}")
+            if (random.nextInt(3) == 0) line.append(" t:2020-03-${10 + random.nextInt(19)}")
+            Task(line.toString())
+        }
+    }
+
+    fun testSortMatchesComparator() {
+        val tasks = syntheticTasks(2000)
+        listOf(true, false).forEach { caseSensitive ->
+            val comp = MultiComparator(sorts, "2020-02-15", caseSensitive, true)
+            assertEquals(tasks.sortedWith(comp.comparator), comp.sort(tasks))
+        }
+        val reversedOnly = MultiComparator(arrayListOf("-!by_due_date"), "2020-02-15", false, false)
+        assertEquals(tasks.sortedWith(reversedOnly.comparator), reversedOnly.sort(tasks))
+    }
+}
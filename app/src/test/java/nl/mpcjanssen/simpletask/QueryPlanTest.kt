@@ -0,0 +1,94 @@
+package nl.mpcjanssen.simpletask
+
+import junit.framework.TestCase
+import nl.mpcjanssen.simpletask.task.Task
+import nl.mpcjanssen.simpletask.util.RefreshPipeline
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class QueryPlanTest : TestCase() {
+    fun testCheapChecksFirst() {
+        val order = ArrayList<String>()
+        val plan = QueryPlan("test", false, listOf(
+                QueryPlan.Stage("lua", QueryPlan.COST_LUA) { order.add("lua"); true },
+                QueryPlan.Stage("completed", QueryPlan.COST_FIELD) { order.add("completed"); !it.isCompleted() },
+                QueryPlan.Stage("index", QueryPlan.COST_INDEX) { order.add("index"); true }
+        ))
+        assertTrue(plan.matches(Task("open")))
+        assertEquals(listOf("index", "completed", "lua"), order)
+
+        order.clear()
+        assertFalse(plan.matches(Task("x done")))
+        assertEquals(listOf("index", "completed"), order)
+        assertTrue(plan.explain().contains("2. completed (cost 2): checked 2, rejected 1"))
+    }
+
+    fun testStopsWhenCancelled() {
+        val pipeline = RefreshPipeline("test") { it() }
+        // The first check submits a newer refresh, which cancels the running one
+        val plan = QueryPlan("test", false, listOf(QueryPlan.Stage("cancels", QueryPlan.COST_FIELD) {
+            pipeline.submit({ Unit }) {}
+            true
+        }))
+        val stopped = CountDownLatch(1)
+        pipeline.submit({ refresh ->
+            try {
+                plan.filter((0 until 10 * RefreshPipeline.CHECK_INTERVAL).map { Task("task $it") }, refresh)
+            } catch (e: CancellationException) {
+                stopped.countDown()
+                throw e
+            }
+        }) { fail("Published a cancelled filter") }
+        assertTrue(stopped.await(5, TimeUnit.SECONDS))
+        assertTrue(plan.explain().contains("checked ${RefreshPipeline.CHECK_INTERVAL},"))
+        pipeline.shutdown()
+    }
+
+    fun testSelectedTasksMatch() {
+        val plan = QueryPlan("test", true, listOf(QueryPlan.Stage("nothing", QueryPlan.COST_FIELD) { false }))
+        val task = Task("selected")
+        assertFalse(plan.matches(task))
+        task.selected = true
+        assertTrue(plan.matches(task))
+    }
+
+    fun testBatchStage() {
+        val batches = ArrayList<List<String>>()
+        val batch = { tasks: List<Task> ->
+            batches.add(tasks.map { it.text })
+            BooleanArray(tasks.size) { !tasks[it].text.contains("skip") }
+        }
+        val plan = QueryPlan("test", true, listOf(
+                QueryPlan.Stage("lua", QueryPlan.COST_LUA, batch) { throw AssertionError("batch not used") },
+                QueryPlan.Stage("completed", QueryPlan.COST_FIELD) { !it.isCompleted() }
+        ))
+        val selected = Task("skip selected").apply { selected = true }
+        val tasks = listOf(Task("a"), Task("x done"), Task("skip b"), selected, Task("c"))
+        assertEquals(listOf("a", "skip selected", "c"), plan.filter(tasks).map { it.text })
+        // Only the tasks left after the cheap checks are passed, selected tasks always match
+        assertEquals(listOf(listOf("a", "skip b", "c")), batches)
+        assertTrue(plan.explain().contains("2. lua (cost 100): checked 3, rejected 1"))
+
+        // Falls back to the per task check without a batch result
+        val fallback = QueryPlan("test", false, listOf(
+                QueryPlan.Stage("lua", QueryPlan.COST_LUA, { null }) { it.text != "b" }))
+        assertEquals(listOf("a", "c"), fallback.filter(listOf(Task("a"), Task("b"), Task("c"))).map { it.text })
+    }
+
+    fun testExplainShowsLastRun() {
+        val plan = QueryPlan("test", false, listOf(QueryPlan.Stage("completed", QueryPlan.COST_FIELD) { !it.isCompleted() }))
+        val tasks = listOf(Task("open"), Task("x done"))
+        plan.filter(tasks)
+        plan.filter(tasks)
+        assertTrue(plan.explain().contains("1. completed (cost 2): checked 2, rejected 1"))
+    }
+
+    fun testBlank() {
+        assertTrue(Task("").isBlank())
+        assertTrue(Task("  ").isBlank())
+        assertTrue(Task(" ", lazy = true).isBlank())
+        assertFalse(Task(" x").isBlank())
+        assertFalse(Task("@list").isBlank())
+    }
+}
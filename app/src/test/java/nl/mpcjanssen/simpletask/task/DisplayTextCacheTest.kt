@@ -0,0 +1,57 @@
+package nl.mpcjanssen.simpletask.task
+
+import junit.framework.TestCase
+
+class DisplayTextCacheTest : TestCase() {
+    fun testKeyedByVersionAndHash() {
+        val cache = DisplayTextCache()
+        val task = Task("Call mom")
+        cache.put(cache.key("main", task, 1), "Call MOM")
+        assertEquals("Call MOM", cache.get(cache.key("main", task, 1))?.text)
+        assertNull(cache.get(cache.key("main", task, 2)))
+        assertNull(cache.get(cache.key("widget1", task, 1)))
+
+        // Shown as is is cached too
+        cache.put(cache.key("widget1", task, 1), null)
+        assertNotNull(cache.get(cache.key("widget1", task, 1)))
+        assertNull(cache.get(cache.key("widget1", task, 1))!!.text)
+
+        task.addTag("family")
+        assertNull(cache.get(cache.key("main", task, 1)))
+    }
+
+    fun testReplacedTaskHasOtherKey() {
+        val cache = DisplayTextCache()
+        val old = Task("Call mom")
+        cache.put(cache.key("main", old, 1), "Call MOM")
+        // As TodoList.update does it
+        val replacement = Task("Call dad")
+        replacement.id = old.id
+        assertNull(cache.get(cache.key("main", replacement, 1)))
+    }
+
+    fun testInvalidate() {
+        val cache = DisplayTextCache()
+        val changed = Task("changed")
+        val other = Task("other")
+        cache.put(cache.key("main", changed, 1), "a")
+        cache.put(cache.key("widget1", changed, 1), "b")
+        cache.put(cache.key("main", other, 1), "c")
+        cache.invalidate(TaskChanges(1, 2, emptySet(), emptySet(), setOf(changed.id)))
+        assertEquals(1, cache.size)
+        assertEquals("c", cache.get(cache.key("main", other, 1))?.text)
+        cache.invalidate(TaskChanges(2, 3, emptySet(), emptySet(), emptySet(), reloaded = true))
+        assertEquals(0, cache.size)
+    }
+
+    fun testLeastRecentlyUsedIsDropped() {
+        val cache = DisplayTextCache(2)
+        val tasks = listOf(Task("a"), Task("b"), Task("c"))
+        cache.put(cache.key("main", tasks[0], 0), "a")
+        cache.put(cache.key("main", tasks[1], 0), "b")
+        cache.get(cache.key("main", tasks[0], 0))
+        cache.put(cache.key("main", tasks[2], 0), "c")
+        assertNotNull(cache.get(cache.key("main", tasks[0], 0)))
+        assertNull(cache.get(cache.key("main", tasks[1], 0)))
+    }
+}
@@ -0,0 +1,49 @@
+package nl.mpcjanssen.simpletask.task
+
+import junit.framework.TestCase
+import java.util.*
+
+class EpochDayTest : TestCase() {
+    fun testParse() {
+        assertEquals(0, EpochDay.parse("1970-01-01"))
+        assertEquals(-1, EpochDay.parse("1969-12-31"))
+        assertEquals(11016, EpochDay.parse("2000-02-29"))
+        assertEquals(EpochDay.NONE, EpochDay.parse("2001-02-29"))
+        assertEquals(EpochDay.NONE, EpochDay.parse("2014-99-99"))
+        assertEquals(EpochDay.NONE, EpochDay.parse("2014-1-011"))
+        assertEquals(EpochDay.NONE, EpochDay.parse(null))
+    }
+
+    fun testRoundTrip() {
+        val cal = GregorianCalendar(TimeZone.getTimeZone("UTC"))
+        cal.clear()
+        cal.set(1899, Calendar.JANUARY, 1)
+        repeat(100000) {
+            val text = String.format(Locale.US, "%04d-%02d-%02d",
+                    cal.get(Calendar.YEAR), cal.get(Calendar.MONTH) + 1, cal.get(Calendar.DAY_OF_MONTH))
+            val day = EpochDay.parse(text)
+            assertEquals(text, cal.timeInMillis / 86400000L, day.toLong())
+            assertEquals(text, EpochDay.format(day))
+            cal.add(Calendar.DAY_OF_MONTH, 1)
+        }
+    }
+
+    fun testTaskDates() {
+        val task = Task("x 2020-03-01 2020-02-01 Task due:2020-02-29 t:2020-02-30")
+        assertEquals(EpochDay.parse("2020-03-01"), task.completionDay)
+        assertEquals(EpochDay.parse("2020-02-01"), task.createDay)
+        assertEquals(EpochDay.parse("2020-02-29"), task.dueDay)
+        assertEquals(EpochDay.NONE, task.thresholdDay)
+        task.thresholdDate = "2020-03-02"
+        assertTrue(task.inFuture("2020-03-01", false))
+        assertFalse(task.inFuture("2020-03-02", false))
+        assertTrue(Task("2020-02-01 Task").inFuture(EpochDay.parse("2020-01-31"), true))
+    }
+
+    fun testInvalidThresholdInFuture() {
+        val task = Task("Task t:2020-02-30")
+        assertTrue(task.inFuture("2020-02-29", false))
+        assertFalse(task.inFuture("2020-03-01", false))
+        assertFalse(Task("Task").inFuture("2020-03-01", true))
+    }
+}
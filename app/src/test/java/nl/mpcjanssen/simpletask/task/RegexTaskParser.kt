@@ -0,0 +1,148 @@
+package nl.mpcjanssen.simpletask.task
+
+import java.util.regex.Pattern
+
+/**
+ * The original regex cascade used by Task.parse, kept as reference for [TaskLexer].
+ */
+object RegexTaskParser {
+    private val MATCH_LIST = Pattern.compile("@(\\S+)").matcher("")
+    private val MATCH_TAG = Pattern.compile("\\+(\\S+)").matcher("")
+    private val MATCH_HIDDEN = Pattern.compile("[Hh]:([01])").matcher("")
+    private val MATCH_UUID = Pattern
+            .compile("[Uu][Uu][Ii][Dd]:([A-Fa-f0-9]{8}-[A-Fa-f0-9]{4}-[A-Fa-f0-9]{4}-[A-Fa-f0-9]{4}-[A-Fa-f0-9]{12})")
+            .matcher("")
+    private val MATCH_DUE = Pattern.compile("[Dd][Uu][Ee]:(\\d{4}-\\d{2}-\\d{2})").matcher("")
+    private val MATCH_THRESHOLD = Pattern.compile("[Tt]:(\\d{4}-\\d{2}-\\d{2})").matcher("")
+    private val MATCH_RECURRENCE = Pattern.compile("[Rr][Ee][Cc]:((\\+?)\\d*[dDwWmMyYbB])").matcher("")
+    private val MATCH_EXT = Pattern.compile("(.+):(.+)").matcher("")
+    private val MATCH_PRIORITY = Regex("\\(([A-Z])\\)")
+    private val MATCH_SINGLE_DATE = Pattern.compile("\\d{4}-\\d{2}-\\d{2}").matcher("")
+    private val MATCH_PHONE_NUMBER = Pattern.compile("[+]?[0-9,#()-]{4,}").matcher("")
+    private val MATCH_URI = Pattern.compile("[a-z]+://(\\S+)").matcher("")
+    private val MATCH_MAIL = Pattern.compile("[a-zA-Z0-9\\+\\._%\\-]{1,256}" + "@"
+            + "[a-zA-Z0-9][a-zA-Z0-9\\-]{0,64}" + "(" + "\\."
+            + "[a-zA-Z0-9][a-zA-Z0-9\\-]{0,25}" + ")+").matcher("")
+
+    fun parse(text: String): ArrayList<TToken> {
+        synchronized(this) {
+            var lexemes = text.lex()
+            val tokens = ArrayList<TToken>()
+
+            if (lexemes.take(1) == listOf("x")) {
+                tokens.add(CompletedToken(true))
+                lexemes = lexemes.drop(1)
+                var nextToken = lexemes.getOrElse(0) { "" }
+                MATCH_SINGLE_DATE.reset(nextToken).apply {
+                    if (matches()) {
+                        tokens.add(CompletedDateToken(lexemes.first()))
+                        lexemes = lexemes.drop(1)
+                        nextToken = lexemes.getOrElse(0) { "" }
+                        MATCH_SINGLE_DATE.reset(nextToken).apply {
+                            if (matches()) {
+                                tokens.add(CreateDateToken(lexemes.first()))
+                                lexemes = lexemes.drop(1)
+                            }
+                        }
+                    }
+                }
+            }
+
+            var nextToken = lexemes.getOrElse(0) { "" }
+            MATCH_PRIORITY.matchEntire(nextToken)?.let {
+                tokens.add(PriorityToken(nextToken))
+                lexemes = lexemes.drop(1)
+            }
+
+            nextToken = lexemes.getOrElse(0) { "" }
+            MATCH_SINGLE_DATE.reset(nextToken).apply {
+                if (matches()) {
+                    tokens.add(CreateDateToken(lexemes.first()))
+                    lexemes = lexemes.drop(1)
+                }
+            }
+
+            lexemes.forEach { lexeme ->
+                MATCH_LIST.reset(lexeme).apply {
+                    if (matches()) {
+                        tokens.add(ListToken(lexeme))
+                        return@forEach
+                    }
+                }
+                MATCH_TAG.reset(lexeme).apply {
+                    if (matches()) {
+                        tokens.add(TagToken(lexeme))
+                        return@forEach
+                    }
+                }
+                MATCH_HIDDEN.reset(lexeme).apply {
+                    if (matches()) {
+                        group(1)?.let { tokens.add(HiddenToken(it)) }
+                        return@forEach
+                    }
+                }
+                // Match phone numbers before tags to support +31.....
+                // This will make tags which can also be interpreted as phone numbers not possible
+                MATCH_PHONE_NUMBER.reset(lexeme).apply {
+                    if (matches()) {
+                        tokens.add(PhoneToken(lexeme))
+                        return@forEach
+                    }
+                }
+
+                MATCH_DUE.reset(lexeme).apply {
+                    if (matches()) {
+                        group(1)?.let { tokens.add(DueDateToken(it)) }
+                        return@forEach
+                    }
+                }
+                MATCH_THRESHOLD.reset(lexeme).apply {
+                    if (matches()) {
+                        group(1)?.let { tokens.add(ThresholdDateToken(it)) }
+                        return@forEach
+                    }
+                }
+                MATCH_RECURRENCE.reset(lexeme).apply {
+                    if (matches()) {
+                        group(1)?.let { tokens.add(RecurrenceToken(it)) }
+                        return@forEach
+                    }
+                }
+                MATCH_UUID.reset(lexeme).apply {
+                    if (matches()) {
+                        group(1)?.let { tokens.add(UUIDToken(it)) }
+                        return@forEach
+                    }
+                }
+                MATCH_URI.reset(lexeme).apply {
+                    if (matches()) {
+                        tokens.add(LinkToken(lexeme))
+                        return@forEach
+                    }
+                }
+                MATCH_MAIL.reset(lexeme).apply {
+                    if (matches()) {
+                        tokens.add(MailToken(lexeme))
+                        return@forEach
+                    }
+                }
+                MATCH_EXT.reset(lexeme).apply {
+                    if (matches()) {
+                        val extName = group(1)
+                        val extValue = group(2)
+                        if (extName!=null && extValue != null) {
+                            tokens.add(ExtToken(extName, extValue))
+                        }
+                        return@forEach
+                    }
+                }
+                if (lexeme.isBlank()) {
+                    tokens.add(WhiteSpaceToken(lexeme))
+                } else {
+                    tokens.add(TextToken(lexeme))
+                }
+            }
+            return tokens
+        }
+    }
+}
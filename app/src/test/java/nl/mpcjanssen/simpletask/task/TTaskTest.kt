@@ -111,8 +111,70 @@ class TaskTest : TestCase() {
         Assert.assertArrayEquals(Task(task3).lists!!.toTypedArray(), Task(task4).lists!!.toTypedArray())
     }
 
+    fun testDerivedFieldsFollowMutations() {
+        val task = Task("(A) Test @a +b")
+        assertEquals(Priority.A, task.priority)
+        task.priority = Priority.C
+        assertEquals(Priority.C, task.priority)
+        task.addList("c")
+        task.removeTag("b")
+        assertEquals(listOf("a", "c"), task.lists!!.toList())
+        assertNull(task.tags)
+        task.markComplete("2020-01-01")
+        assertTrue(task.isCompleted())
+        assertEquals("2020-01-01", task.completionDate)
+        task.update("Other h:1")
+        assertFalse(task.isCompleted())
+        assertTrue(task.isHidden())
+        assertEquals("Other", task.alphaParts)
+    }
+
     fun testAlphaParts() {
         val task1 = Task("2018-07-01 1234 Task text with some 33-33 random numbers 12345678 @a +b due:2019-01-01 t:2019-01-01 misc:mine")
         assertEquals("1234 Task text with some 33-33 random numbers 12345678", task1.alphaParts)
     }
+
+    fun testInternedListsAndTags() {
+        val task1 = Task("Task @interned +shared")
+        val task2 = Task(String(charArrayOf('@', 'i', 'n', 't', 'e', 'r', 'n', 'e', 'd')) + " +shared")
+        assertSame(task1.lists!!.first(), task2.lists!!.first())
+        assertEquals(task1.listIds, task2.listIds)
+        assertTrue(ByContextFilter(listOf("interned"), false).apply(task2))
+        assertFalse(ByProjectFilter(listOf("interned"), false).apply(task2))
+        assertTrue(ByProjectFilter(listOf("-"), false).apply(Task("no tags")))
+        task2.removeList("interned")
+        assertNull(task2.lists)
+    }
+
+    fun testCopyIsIndependent() {
+        listOf(false, true).forEach { compact ->
+            val task = Task("(A) Task @home due:2020-01-01", compact = compact)
+            task.selected = true
+            val copy = task.copy()
+            assertEquals(task.text, copy.text)
+            assertEquals(task.id, copy.id)
+            assertTrue(copy.selected)
+            assertEquals(compact, copy.isCompact)
+            copy.markComplete("2020-01-02")
+            copy.addTag("done")
+            assertFalse(task.isCompleted())
+            assertNull(task.tags)
+            assertEquals("(A) Task @home due:2020-01-01", task.text)
+            assertFalse(task.version == copy.version)
+        }
+    }
+
+    fun testFieldCacheOfCompactTasks() {
+        val task = Task("Task @home due:2020-01-01", compact = true)
+        // Rebuilt on every read outside of a pass
+        assertNotSame(task.lists, task.lists)
+        Task.withFieldCache {
+            assertSame(task.lists, task.lists)
+            task.update("Task @work due:2020-01-02")
+            assertTrue(task.isCompact)
+            assertEquals(listOf("work"), task.lists!!.toList())
+            assertEquals("2020-01-02", task.dueDate)
+        }
+        assertNotSame(task.lists, task.lists)
+    }
 }
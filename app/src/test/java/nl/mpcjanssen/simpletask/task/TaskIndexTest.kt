@@ -0,0 +1,78 @@
+package nl.mpcjanssen.simpletask.task
+
+import junit.framework.TestCase
+import java.util.*
+
+class TaskIndexTest : TestCase() {
+    private val lists = listOf("home", "work", "-")
+    private val tags = listOf("garden", "car", "-")
+
+    private fun randomTask(random: Random): Task {
+        val parts = ArrayList<String>()
+        if (random.nextBoolean()) parts.add("(${"ABC"[random.nextInt(3)]})")
+        parts.add("task")
+        if (random.nextBoolean()) parts.add("@home")
+        if (random.nextBoolean()) parts.add("@work")
+        if (random.nextBoolean()) parts.add("+garden")
+        if (random.nextBoolean()) parts.add("+car")
+        return Task(parts.joinToString(" "))
+    }
+
+    private fun slots(index: TaskIndex, tasks: List<Task>, filter: TaskFilter): BitSet {
+        val result = BitSet()
+        tasks.filter { filter.apply(it) }.forEach { result.set(index.slot(it)) }
+        return result
+    }
+
+    fun testMatchesFilters() {
+        val random = Random(7)
+        val tasks = ArrayList((0 until 300).map { randomTask(random) })
+        val index = TaskIndex()
+        index.rebuild(tasks)
+        // Churn the index: remove, update and add tasks
+        repeat(200) {
+            when (random.nextInt(3)) {
+                0 -> index.remove(tasks.removeAt(random.nextInt(tasks.size)))
+                1 -> tasks[random.nextInt(tasks.size)].let {
+                    it.priority = Priority.values()[random.nextInt(4)]
+                    if (random.nextBoolean()) it.removeList("home") else it.addTag("car")
+                    index.add(it)
+                }
+                else -> randomTask(random).let {
+                    tasks.add(it)
+                    index.add(it)
+                }
+            }
+        }
+        assertEquals(tasks.size, index.all().cardinality())
+        for (name in lists) {
+            assertEquals(slots(index, tasks, ByContextFilter(listOf(name), false)), index.withLists(listOf(name)))
+        }
+        for (name in tags) {
+            assertEquals(slots(index, tasks, ByProjectFilter(listOf(name), false)), index.withTags(listOf(name)))
+        }
+        val priorities = listOf(Priority.A, Priority.NONE)
+        assertEquals(slots(index, tasks, ByPriorityFilter(priorities, false)), index.withPriorities(priorities))
+        assertEquals(BitSet(), index.withLists(listOf("unknown list")))
+        val onHome = index.tasks(index.withLists(listOf("home")))
+        assertEquals(tasks.filter { it.lists?.contains("home") == true }.toSet(), onHome)
+    }
+
+    fun testCounts() {
+        val done = Task("x done @home +car")
+        val open = Task("open @home @work")
+        val index = TaskIndex()
+        index.rebuild(listOf(done, open))
+        assertEquals(TaskIndex.Count(1, 2), index.listCounts()["home"])
+        assertEquals(TaskIndex.Count(1, 1), index.listCounts()["work"])
+        assertEquals(TaskIndex.Count(0, 1), index.tagCounts()["car"])
+        done.markIncomplete()
+        open.removeList("work")
+        index.addAll(listOf(done, open))
+        assertEquals(TaskIndex.Count(2, 2), index.listCounts()["home"])
+        assertNull(index.listCounts()["work"])
+        index.remove(done)
+        assertEquals(setOf("home"), index.listCounts().keys)
+        assertTrue(index.tagCounts().isEmpty())
+    }
+}
@@ -0,0 +1,59 @@
+package nl.mpcjanssen.simpletask.task
+
+import junit.framework.TestCase
+
+class TaskJournalTest : TestCase() {
+    fun testFoldsChangesOfOneTask() {
+        val journal = TaskJournal()
+        val kept = Task("kept")
+        val added = Task("added")
+        val temporary = Task("temporary")
+        val edited = Task("edited")
+        val removed = Task("removed")
+        journal.added(added)
+        journal.updated(added)
+        journal.added(temporary)
+        journal.removed(temporary)
+        journal.removed(edited)
+        journal.added(edited)
+        journal.updated(removed)
+        journal.removed(removed)
+        val changes = journal.commit(0, 1)!!
+        assertEquals(setOf(added.id), changes.added)
+        assertEquals(setOf(removed.id), changes.removed)
+        assertEquals(setOf(edited.id), changes.updated)
+        assertFalse(changes.affects(kept.id))
+        assertNull(journal.commit(1, 2))
+    }
+
+    fun testTaskVersions() {
+        val journal = TaskJournal()
+        val task = Task("task")
+        journal.added(task)
+        val added = journal.commit(0, 1)!!.versions[task.id]!!
+        assertEquals(TaskVersions(TaskVersions.NONE, task.version), added)
+
+        task.update("changed")
+        journal.updated(task)
+        task.update("changed again")
+        journal.updated(task)
+        assertEquals(TaskVersions(added.after, task.version), journal.commit(1, 2)!!.versions[task.id])
+
+        // Replaced by an edit, as TodoList.update does it
+        val committed = task.version
+        val replacement = Task("replacement")
+        replacement.id = task.id
+        journal.removed(task)
+        journal.added(replacement)
+        val replaced = journal.commit(2, 3)!!.versions[task.id]!!
+        assertEquals(TaskVersions(committed, replacement.version), replaced)
+        assertTrue(replaced.after > replaced.before)
+
+        // Unknown before the first change after a reload
+        val loaded = Task("loaded")
+        journal.reloaded()
+        journal.commit(3, 4)
+        journal.updated(loaded)
+        assertEquals(TaskVersions(TaskVersions.NONE, loaded.version), journal.commit(4, 5)!!.versions[loaded.id])
+    }
+}
@@ -0,0 +1,46 @@
+package nl.mpcjanssen.simpletask.task
+
+import junit.framework.TestCase
+
+class TaskKeyCacheTest : TestCase() {
+    fun testComputedAgainAfterChange() {
+        val cache = TaskKeyCache<String>()
+        val task = Task("Call mom @phone")
+        var calls = 0
+        val key = { t: Task -> calls++; t.text }
+        assertEquals("Call mom @phone", cache.get("main", task, key))
+        assertEquals("Call mom @phone", cache.get("main", task, key))
+        assertEquals(1, calls)
+
+        task.addTag("family")
+        assertEquals("Call mom @phone +family", cache.get("main", task, key))
+        assertEquals(2, calls)
+        task.markComplete("2020-01-01")
+        cache.get("main", task, key)
+        assertEquals(3, calls)
+
+        // Modules are cached separately
+        cache.get("widget", task, key)
+        assertEquals(4, calls)
+        cache.clear("main")
+        cache.get("main", task, key)
+        cache.get("widget", task, key)
+        assertEquals(5, calls)
+        assertEquals(2L, cache.hits)
+    }
+
+    fun testVersionChangesOnEveryChange() {
+        val task = Task("(A) Test due:2020-01-01")
+        val versions = ArrayList<Long>()
+        versions.add(task.version)
+        task.priority = Priority.B
+        versions.add(task.version)
+        task.dueDate = "2020-02-02"
+        versions.add(task.version)
+        task.update("Other text")
+        versions.add(task.version)
+        task.id = java.util.UUID.randomUUID().toString()
+        versions.add(task.version)
+        assertEquals(versions.size, versions.distinct().size)
+    }
+}
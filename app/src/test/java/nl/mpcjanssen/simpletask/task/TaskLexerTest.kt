@@ -0,0 +1,116 @@
+package nl.mpcjanssen.simpletask.task
+
+import junit.framework.TestCase
+import java.util.*
+
+/**
+ * Checks that the hand written lexer produces exactly the same tokens as the original regex parser.
+ */
+class TaskLexerTest : TestCase() {
+
+    private val fragments = listOf("x", "X", "(A)", "(b)", "2014-01-01", "2014-1-01", "@list", "@", "+tag", "+",
+            "+3161234", "1234", "12-34,5#", "h:1", "H:0", "due:2014-10-10", "DuE:2014-10-10", "t:2014-10-10",
+            "rec:1d", "rec:+12w", "Rec:b", "uuid:0a1b2c3d-4e5f-6a7b-8c9d-0e1f2a3b4c5d", "http://a.b",
+            "a://", "mail@example.com", "a@b", "key:value", "a:b:c", ":", "x:", "text", "", " ", "\t", "\u00a0",
+            "\u2003", "\u0085", "é", ":\u0085:")
+
+    private fun assertSameTokens(line: String) {
+        assertEquals("Tokens for '$line'", RegexTaskParser.parse(line), TaskLexer.parse(line))
+    }
+
+    fun testGoldenFile() {
+        val input = javaClass.getResourceAsStream("parser_golden.txt")
+        assertNotNull(input)
+        val lines = input!!.reader(Charsets.UTF_8).use { it.readLines() }
+        assertTrue(lines.isNotEmpty())
+        lines.forEach { assertSameTokens(it) }
+    }
+
+    fun testCompactTasks() {
+        val input = javaClass.getResourceAsStream("parser_golden.txt")
+        val lines = input!!.reader(Charsets.UTF_8).use { it.readLines() }
+        lines.forEach {
+            val expanded = Task(it)
+            val compact = Task(it, compact = true)
+            assertTrue(compact.isCompact)
+            assertEquals(expanded.tokens, compact.tokens)
+            assertEquals(expanded.text, compact.text)
+            assertEquals(expanded.lists, compact.lists)
+            assertEquals(expanded.alphaParts, compact.alphaParts)
+        }
+        val task = Task("(A) Test DUE:2020-01-01 @list", compact = true)
+        assertEquals("(A) Test due:2020-01-01 @list", task.text)
+        task.priority = Priority.B
+        assertFalse(task.isCompact)
+        assertEquals("(B) Test due:2020-01-01 @list", task.text)
+        assertEquals("2010-01-01 test", Task("test", "2010-01-01", compact = true).text)
+    }
+
+    fun testLazyTasks() {
+        val input = javaClass.getResourceAsStream("parser_golden.txt")
+        val lines = input!!.reader(Charsets.UTF_8).use { it.readLines() }
+        val tasks = TaskParser.parse(lines, lazy = true)
+        assertTrue(tasks.all { it.isLazy })
+        lines.forEachIndexed { idx, line ->
+            assertEquals(Task(line).text, tasks[idx].text)
+        }
+        TaskParser.ensureParsed(tasks)
+        assertFalse(tasks.any { it.isLazy })
+        lines.forEachIndexed { idx, line ->
+            assertEquals(Task(line).tokens, tasks[idx].tokens)
+        }
+        val task = Task("(A) lazy @list", lazy = true)
+        assertEquals("(A) lazy @list", task.text)
+        assertTrue(task.isLazy)
+        assertEquals(Priority.A, task.priority)
+        assertFalse(task.isLazy)
+        assertTrue(Task("lazy DUE:2020-01-01", lazy = true, compact = true).let { it.text == "lazy due:2020-01-01" && it.isCompact })
+    }
+
+    fun testIsNormalized() {
+        val random = Random(42)
+        repeat(5000) {
+            val line = (0 until random.nextInt(8)).joinToString(" ") {
+                fragments[random.nextInt(fragments.size)]
+            }
+            if (TaskLexer.isNormalized(line)) {
+                assertEquals(line, TaskLexer.pack(line).first)
+            }
+        }
+        assertFalse(TaskLexer.isNormalized("a DUE:2020-01-01"))
+        assertTrue(TaskLexer.isNormalized("a due:2020-01-01 Label:value"))
+    }
+
+    fun testRandomLines() {
+        val random = Random(1103)
+        repeat(5000) {
+            val line = (0 until random.nextInt(8)).joinToString(if (random.nextInt(4) == 0) "  " else " ") {
+                fragments[random.nextInt(fragments.size)]
+            }
+            assertSameTokens(line)
+        }
+    }
+
+    fun testIsDate() {
+        assertTrue(TaskLexer.isDate("2014-99-99"))
+        assertFalse(TaskLexer.isDate("2014-1-01"))
+        assertFalse(TaskLexer.isDate("2014-01-011"))
+        assertFalse(TaskLexer.isDate("1w"))
+    }
+
+    fun testConcurrentParsing() {
+        val lines = (0 until 2000).map { "(A) 2014-01-01 task $it @list$it +tag due:2014-10-10 t:2014-10-01" }
+        val expected = lines.map { RegexTaskParser.parse(it) }
+        val failures = Collections.synchronizedList(ArrayList<String>())
+        val threads = (0 until 4).map {
+            Thread {
+                lines.forEachIndexed { idx, line ->
+                    if (TaskLexer.parse(line) != expected[idx]) failures.add(line)
+                }
+            }
+        }
+        threads.forEach { it.start() }
+        threads.forEach { it.join() }
+        assertEquals(emptyList<String>(), failures.toList())
+    }
+}
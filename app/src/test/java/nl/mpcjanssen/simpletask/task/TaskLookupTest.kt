@@ -0,0 +1,48 @@
+package nl.mpcjanssen.simpletask.task
+
+import junit.framework.TestCase
+import java.util.*
+
+class TaskLookupTest : TestCase() {
+    fun testPositionsFollowChanges() {
+        val random = Random(3)
+        val items = ArrayList((0 until 50).map { Task("task $it") })
+        val lookup = TaskLookup()
+        lookup.reset(items)
+        repeat(2000) {
+            when (random.nextInt(5)) {
+                0 -> Task("added").let {
+                    items.add(it)
+                    lookup.added(it)
+                }
+                1 -> Task("inserted").let {
+                    val position = random.nextInt(items.size + 1)
+                    items.add(position, it)
+                    lookup.added(it, position)
+                }
+                2 -> if (items.size > 1) lookup.removed(items.removeAt(random.nextInt(items.size)))
+                3 -> if (random.nextBoolean()) {
+                    val position = random.nextInt(items.size)
+                    val copy = items[position].copy()
+                    lookup.replaced(items[position], copy)
+                    items[position] = copy
+                } else {
+                    val from = random.nextInt(items.size)
+                    val to = random.nextInt(items.size)
+                    items.add(to, items.removeAt(from))
+                    lookup.changedFrom(minOf(from, to))
+                }
+                else -> {
+                    val task = items[random.nextInt(items.size)]
+                    assertSame(task, lookup.task(task.id))
+                }
+            }
+            val task = items[random.nextInt(items.size)]
+            assertEquals(items.indexOf(task), lookup.position(task, items))
+        }
+        items.forEachIndexed { idx, task -> assertEquals(idx, lookup.position(task, items)) }
+        assertEquals(-1, lookup.position(Task("not in list"), items))
+        assertNull(lookup.task(UUID.randomUUID().toString()))
+        assertNull(lookup.task("not an id"))
+    }
+}
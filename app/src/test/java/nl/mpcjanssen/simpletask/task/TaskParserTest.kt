@@ -0,0 +1,22 @@
+package nl.mpcjanssen.simpletask.task
+
+import junit.framework.TestCase
+
+class TaskParserTest : TestCase() {
+
+    fun testParallelKeepsFileOrder() {
+        val lines = (0 until 10000).map { "(B) task $it @list${it % 7} +tag${it % 13}" }
+        val sequential = TaskParser.parse(lines, parallel = false)
+        val parallel = TaskParser.parse(lines, parallel = true)
+        assertEquals(lines, sequential.map { it.text })
+        assertEquals(lines, parallel.map { it.text })
+        assertEquals(sequential.map { it.tokens }, parallel.map { it.tokens })
+    }
+
+    fun testDefaultPrependedDate() {
+        val lines = (0 until 2000).map { if (it % 2 == 0) "task $it" else "2010-01-01 task $it" }
+        TaskParser.parse(lines, parallel = true, defaultPrependedDate = "2020-02-02").forEachIndexed { idx, task ->
+            assertEquals(if (idx % 2 == 0) "2020-02-02" else "2010-01-01", task.createDate)
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package nl.mpcjanssen.simpletask.task
+
+import junit.framework.TestCase
+import java.util.*
+
+class TaskSnapshotTest : TestCase() {
+    fun testMatchesArrayList() {
+        val random = Random(11)
+        val expected = ArrayList((0 until 300).map { Task("task $it") })
+        var snapshot = TaskSnapshot.of(expected)
+        val old = snapshot
+        val oldContents = ArrayList(expected)
+        repeat(3000) {
+            val version = snapshot.version
+            when (random.nextInt(6)) {
+                0 -> (0 until random.nextInt(200)).map { Task("appended") }.let {
+                    expected.addAll(it)
+                    snapshot = snapshot.append(it)
+                }
+                1 -> (1..random.nextInt(3) + 1).map { Task("inserted") }.let {
+                    val index = random.nextInt(expected.size + 1)
+                    expected.addAll(index, it)
+                    snapshot = snapshot.insert(index, it)
+                }
+                2 -> if (expected.isNotEmpty()) {
+                    val index = random.nextInt(expected.size)
+                    expected.removeAt(index)
+                    snapshot = snapshot.without(index)
+                }
+                3 -> if (expected.isNotEmpty()) {
+                    val removed = (0 until random.nextInt(40)).map { expected[random.nextInt(expected.size)] }.toSet()
+                    expected.removeAll(removed)
+                    snapshot = snapshot.without(removed)
+                }
+                4 -> if (expected.isNotEmpty()) {
+                    val index = random.nextInt(expected.size)
+                    val task = Task("replaced")
+                    expected[index] = task
+                    snapshot = snapshot.replace(index, task)
+                }
+                else -> if (expected.isNotEmpty()) {
+                    val from = random.nextInt(expected.size)
+                    val to = random.nextInt(expected.size)
+                    expected.add(to, expected.removeAt(from))
+                    snapshot = snapshot.move(from, to)
+                }
+            }
+            assertTrue(snapshot.version >= version)
+            assertEquals(expected.size, snapshot.size)
+        }
+        assertEquals(expected, snapshot)
+        assertEquals(expected, snapshot.toList())
+        expected.forEachIndexed { idx, task -> assertEquals(idx, snapshot.positionOf(task)) }
+        assertEquals(-1, snapshot.positionOf(Task("task 0")))
+        assertEquals(oldContents, old)
+        assertEquals(0, old.version)
+    }
+
+    fun testMergesSmallChunks() {
+        val tasks = (0 until 64 * TaskSnapshot.CHUNK).map { Task("task $it") }
+        var snapshot = TaskSnapshot.of(tasks)
+        assertEquals(64, snapshot.chunkCount)
+        // Leaves one task in every chunk
+        snapshot = snapshot.without(tasks.filterIndexed { idx, _ -> idx % TaskSnapshot.CHUNK != 0 })
+        assertEquals(64, snapshot.size)
+        assertEquals(1, snapshot.chunkCount)
+        repeat(snapshot.size - 1) { snapshot = snapshot.without(0) }
+        assertEquals(1, snapshot.size)
+        assertEquals(1, snapshot.chunkCount)
+    }
+
+    fun testEmpty() {
+        assertTrue(TaskSnapshot.EMPTY.isEmpty())
+        val task = Task("single")
+        val snapshot = TaskSnapshot.EMPTY.insert(0, listOf(task))
+        assertEquals(listOf(task), snapshot)
+        assertEquals(1, snapshot.version)
+        assertTrue(snapshot.without(0).isEmpty())
+    }
+}
@@ -0,0 +1,63 @@
+package nl.mpcjanssen.simpletask.task
+
+import junit.framework.TestCase
+import nl.mpcjanssen.simpletask.HeaderLine
+import nl.mpcjanssen.simpletask.TaskLine
+
+class VisibleLineDiffTest : TestCase() {
+    fun testSameLine() {
+        val task = Task("a")
+        val line = TaskLine(task)
+        assertTrue(VisibleLineDiff.sameLine(line, TaskLine(task)))
+        assertFalse(VisibleLineDiff.sameLine(line, TaskLine(Task("a"))))
+        // The count doesn't change the header
+        val header = HeaderLine("group").apply { title += " (1)" }
+        assertTrue(VisibleLineDiff.sameLine(header, HeaderLine("group").apply { title += " (2)" }))
+        assertFalse(VisibleLineDiff.sameLine(header, HeaderLine("other")))
+        assertFalse(VisibleLineDiff.sameLine(header, line))
+    }
+
+    fun testLineIds() {
+        val ids = LineIds()
+        val task = Task("a")
+        assertEquals(ids.of(TaskLine(task)), ids.of(TaskLine(task)))
+        assertFalse(ids.of(TaskLine(task)) == ids.of(TaskLine(Task("a"))))
+        // Same hash code, different groups
+        assertEquals("Aa".hashCode(), "BB".hashCode())
+        val aa = ids.of(HeaderLine("Aa"))
+        assertFalse(aa == ids.of(HeaderLine("BB")))
+        assertEquals(aa, ids.of(HeaderLine("Aa").apply { title += " (3)" }))
+        assertFalse(aa == ids.of(TaskLine(task)))
+    }
+
+    fun testRepeatedGroups() {
+        // A group that isn't sorted together gets a header for every occurrence
+        val first = HeaderLine("group")
+        val second = HeaderLine("group", 1)
+        assertFalse(VisibleLineDiff.sameLine(first, second))
+        assertTrue(VisibleLineDiff.sameLine(second, HeaderLine("group", 1)))
+        val ids = LineIds()
+        val lines = listOf(first, TaskLine(Task("a")), HeaderLine("other"), second)
+        assertEquals(lines.size, lines.map { ids.of(it) }.toSet().size)
+        assertEquals(ids.of(second), ids.of(HeaderLine("group", 1)))
+    }
+
+    fun testSameContents() {
+        val task = Task("a")
+        val line = TaskLine(task)
+        assertTrue(VisibleLineDiff.sameContents(line, TaskLine(task)))
+        task.update("b")
+        assertFalse(VisibleLineDiff.sameContents(line, TaskLine(task)))
+        val changed = TaskLine(task)
+        task.selected = true
+        assertFalse(VisibleLineDiff.sameContents(changed, TaskLine(task)))
+        assertFalse(VisibleLineDiff.sameContents(HeaderLine("group (1)"), HeaderLine("group (2)")))
+    }
+
+    fun testTooManyChanges() {
+        val tasks = (0..VisibleLineDiff.MAX_CHANGES).map { TaskLine(Task("task $it")) }
+        assertFalse(VisibleLineDiff.tooManyChanges(tasks, tasks.drop(1)))
+        assertFalse(VisibleLineDiff.tooManyChanges(tasks, tasks.reversed()))
+        assertTrue(VisibleLineDiff.tooManyChanges(tasks, tasks.map { TaskLine(Task(it.task.text)) }))
+    }
+}
@@ -0,0 +1,79 @@
+package nl.mpcjanssen.simpletask.util
+
+import junit.framework.TestCase
+import java.util.*
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+class RefreshPipelineTest : TestCase() {
+    fun testOnlyLatestIsPublished() {
+        val published = Collections.synchronizedList(ArrayList<Int>())
+        val computed = Collections.synchronizedList(ArrayList<Int>())
+        val pipeline = RefreshPipeline("test") { it() }
+        val started = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val done = CountDownLatch(1)
+
+        pipeline.submit({ refresh ->
+            computed.add(0)
+            started.countDown()
+            release.await()
+            refresh.checkCancelled()
+            0
+        }) { published.add(it) }
+        assertTrue(started.await(5, TimeUnit.SECONDS))
+        // Submitted while the first one runs, only the last one is computed
+        (1..3).forEach { value ->
+            pipeline.submit({ computed.add(value); value }) {
+                published.add(it)
+                if (value == 3) done.countDown()
+            }
+        }
+        release.countDown()
+        assertTrue(done.await(5, TimeUnit.SECONDS))
+        assertEquals(listOf(0, 3), computed)
+        assertEquals(listOf(3), published)
+        pipeline.shutdown()
+    }
+
+    fun testStaleResultIsNotPosted() {
+        val posted = LinkedBlockingQueue<() -> Unit>()
+        val published = ArrayList<String>()
+        val pipeline = RefreshPipeline("test") { posted.add(it) }
+        val started = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        // Keeps the worker busy until both refreshes are submitted, it must run before
+        // they are submitted because a cancelled refresh is skipped
+        pipeline.submit({ started.countDown(); release.await(); "blocking" }) { published.add(it) }
+        assertTrue(started.await(5, TimeUnit.SECONDS))
+        pipeline.submit({ "first" }) { published.add(it) }
+        pipeline.submit({ "second" }) { published.add(it) }
+        release.countDown()
+        val second = posted.poll(5, TimeUnit.SECONDS)
+        assertNotNull(second)
+        pipeline.submit({ "third" }) { published.add(it) }
+        val third = posted.poll(5, TimeUnit.SECONDS)
+        assertNotNull(third)
+        second()
+        third()
+        assertEquals(listOf("third"), published)
+        pipeline.shutdown()
+    }
+
+    fun testFailureIsPosted() {
+        val failures = LinkedBlockingQueue<Exception>()
+        val pipeline = RefreshPipeline("test") { it() }
+        pipeline.submit({ throw IllegalStateException("broken") }, failed = { failures.add(it) }) {
+            fail("Published a failed refresh")
+        }
+        assertEquals("broken", failures.poll(5, TimeUnit.SECONDS)?.message)
+        pipeline.shutdown()
+    }
+
+    fun testSubmitAfterShutdownIsIgnored() {
+        val pipeline = RefreshPipeline("test") { it() }
+        pipeline.shutdown()
+        pipeline.submit({ fail("Computed after shutdown") }) {}
+    }
+}